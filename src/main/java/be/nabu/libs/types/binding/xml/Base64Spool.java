@@ -0,0 +1,228 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.Closeable;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+
+/**
+ * Decodes base64 content as it comes in instead of waiting for the full string
+ * Once the decoded content exceeds the threshold, it is spooled to a temporary file
+ * Like the mime decoder, characters that are not part of the base64 alphabet (e.g. whitespace) are ignored
+ */
+public class Base64Spool implements Closeable {
+
+	private static final byte [] DECODE = new byte[128];
+	
+	static {
+		for (int i = 0; i < DECODE.length; i++) {
+			DECODE[i] = -1;
+		}
+		String alphabet = "ABCDEFGHIJKLMNOPQRSTUVWXYZabcdefghijklmnopqrstuvwxyz0123456789+/";
+		for (int i = 0; i < alphabet.length(); i++) {
+			DECODE[alphabet.charAt(i)] = (byte) i;
+		}
+		// the url safe variant
+		DECODE['-'] = 62;
+		DECODE['_'] = 63;
+	}
+	
+	private long threshold;
+	private ByteArrayOutputStream memory = new ByteArrayOutputStream();
+	private SpoolFiles.Tracked file;
+	private OutputStream output = memory;
+	private long size;
+	
+	private byte [] buffer = new byte[8192];
+	private int bufferLength;
+	
+	/**
+	 * The bits of the current quantum and how many characters it contains
+	 */
+	private int bits, quantum;
+	private boolean padded;
+	
+	public Base64Spool(long threshold) {
+		this.threshold = threshold;
+	}
+	
+	public void write(char [] ch, int start, int length) throws IOException {
+		for (int i = start; i < start + length; i++) {
+			char character = ch[i];
+			if (character == '=') {
+				padded = true;
+			}
+			else if (!padded && character < 128 && DECODE[character] >= 0) {
+				bits = (bits << 6) | DECODE[character];
+				if (++quantum == 4) {
+					put((byte) (bits >> 16));
+					put((byte) (bits >> 8));
+					put((byte) bits);
+					bits = 0;
+					quantum = 0;
+				}
+			}
+		}
+	}
+	
+	private void put(byte value) throws IOException {
+		if (bufferLength == buffer.length) {
+			flush();
+		}
+		buffer[bufferLength++] = value;
+	}
+	
+	private void flush() throws IOException {
+		output.write(buffer, 0, bufferLength);
+		size += bufferLength;
+		bufferLength = 0;
+		if (file == null && size > threshold) {
+			file = SpoolFiles.track(this, File.createTempFile("xml-binary", ".spool"));
+			output = new FileOutputStream(file.getFile());
+			memory.writeTo(output);
+			memory = null;
+		}
+	}
+	
+	private void finish() throws IOException {
+		// a partial quantum contains one (2 characters) or two (3 characters) bytes
+		if (quantum == 2) {
+			put((byte) (bits >> 4));
+		}
+		else if (quantum == 3) {
+			put((byte) (bits >> 10));
+			put((byte) (bits >> 2));
+		}
+		quantum = 0;
+		flush();
+		if (file != null) {
+			output.close();
+		}
+	}
+	
+	/**
+	 * Returns null if there was no content
+	 */
+	public byte [] toBytes() throws IOException {
+		finish();
+		if (size == 0) {
+			return null;
+		}
+		else if (file != null) {
+			throw new IOException("The decoded content was spooled to a file, it can not be returned as a byte array");
+		}
+		return memory.toByteArray();
+	}
+	
+	/**
+	 * Returns null if there was no content, a spooled file is only opened when the stream is first read
+	 * It is removed when the stream is closed or no longer reachable
+	 */
+	public InputStream toInputStream() throws IOException {
+		finish();
+		if (size == 0) {
+			close();
+			return null;
+		}
+		else if (file != null) {
+			InputStream input = new SpoolInputStream(file.release());
+			file = null;
+			return input;
+		}
+		return new ByteArrayInputStream(memory.toByteArray());
+	}
+	
+	/**
+	 * Discards the content, if it is not handed off as a stream the file is removed
+	 */
+	@Override
+	public void close() throws IOException {
+		if (file != null) {
+			try {
+				output.close();
+			}
+			finally {
+				file.delete();
+				file = null;
+			}
+		}
+	}
+	
+	private static class SpoolInputStream extends InputStream {
+		private SpoolFiles.Tracked file;
+		private InputStream input;
+		private boolean closed;
+		
+		private SpoolInputStream(File file) {
+			this.file = SpoolFiles.track(this, file);
+		}
+		
+		private InputStream getInput() throws IOException {
+			if (closed) {
+				throw new IOException("The stream is closed");
+			}
+			if (input == null) {
+				input = new FileInputStream(file.getFile());
+			}
+			return input;
+		}
+		
+		@Override
+		public int read() throws IOException {
+			return getInput().read();
+		}
+
+		@Override
+		public int read(byte[] bytes, int offset, int length) throws IOException {
+			return getInput().read(bytes, offset, length);
+		}
+
+		@Override
+		public long skip(long amount) throws IOException {
+			return getInput().skip(amount);
+		}
+
+		@Override
+		public int available() throws IOException {
+			return getInput().available();
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					if (input != null) {
+						input.close();
+					}
+				}
+				finally {
+					file.delete();
+				}
+			}
+		}
+	}
+}
@@ -0,0 +1,188 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.beans.Introspector;
+import java.lang.invoke.MethodHandle;
+import java.lang.invoke.MethodHandles;
+import java.lang.invoke.MethodType;
+import java.lang.reflect.Method;
+import java.lang.reflect.Modifier;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.java.BeanType;
+
+/**
+ * Method handles for the no-arg constructor and the setters of a bean class, they are looked up once per class
+ * Anything we can not access directly (non-public classes, overloaded setters,...) is left to the regular bean instance
+ * Collections, maps and arrays are also left to the bean instance, it converts the items
+ */
+public class BeanAccessors {
+
+	private static final ClassValue<BeanAccessors> ACCESSORS = new ClassValue<BeanAccessors>() {
+		@Override
+		protected BeanAccessors computeValue(Class<?> type) {
+			return new BeanAccessors(type);
+		}
+	};
+	
+	private static final MethodType CONSTRUCTOR_TYPE = MethodType.methodType(Object.class);
+	private static final MethodType SETTER_TYPE = MethodType.methodType(void.class, Object.class, Object.class);
+	
+	private MethodHandle constructor;
+	private Map<String, Setter> setters = new HashMap<String, Setter>();
+	
+	private BeanAccessors(Class<?> beanClass) {
+		MethodHandles.Lookup lookup = MethodHandles.publicLookup();
+		if (Modifier.isPublic(beanClass.getModifiers()) && !Modifier.isAbstract(beanClass.getModifiers()) && !beanClass.isInterface()) {
+			try {
+				constructor = lookup.findConstructor(beanClass, MethodType.methodType(void.class)).asType(CONSTRUCTOR_TYPE);
+			}
+			catch (NoSuchMethodException e) {
+				// no direct construction
+			}
+			catch (IllegalAccessException e) {
+				// no direct construction
+			}
+		}
+		Set<String> excluded = new HashSet<String>();
+		for (Method method : beanClass.getMethods()) {
+			if (method.getName().length() > 3 && method.getName().startsWith("set") && method.getParameterCount() == 1 && !Modifier.isStatic(method.getModifiers())) {
+				String name = Introspector.decapitalize(method.getName().substring(3));
+				// overloaded (or bridged) setters are ambiguous, for containers we don't know the item type so we can not check the items
+				if (setters.containsKey(name) || excluded.contains(name) || isContainer(method.getParameterTypes()[0])) {
+					setters.remove(name);
+					excluded.add(name);
+					continue;
+				}
+				try {
+					setters.put(name, new Setter(lookup.unreflect(method).asType(SETTER_TYPE), box(method.getParameterTypes()[0])));
+				}
+				catch (IllegalAccessException e) {
+					// leave it to the bean instance
+				}
+			}
+		}
+	}
+	
+	public static BeanAccessors get(Class<?> beanClass) {
+		return ACCESSORS.get(beanClass);
+	}
+	
+	/**
+	 * Returns null if the bean can not be constructed directly
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	public static ComplexContent newInstance(BeanType<?> type) {
+		BeanAccessors accessors = get(type.getBeanClass());
+		if (accessors.constructor == null) {
+			return null;
+		}
+		try {
+			Object bean = (Object) accessors.constructor.invokeExact();
+			return new DirectBeanInstance(bean, accessors);
+		}
+		catch (RuntimeException e) {
+			throw e;
+		}
+		catch (Error e) {
+			throw e;
+		}
+		catch (Throwable e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	public Setter getSetter(String name) {
+		return setters.get(name);
+	}
+	
+	private static boolean isContainer(Class<?> type) {
+		return type.isArray() || Collection.class.isAssignableFrom(type) || Map.class.isAssignableFrom(type);
+	}
+	
+	private static Class<?> box(Class<?> type) {
+		if (!type.isPrimitive()) {
+			return type;
+		}
+		else if (type == int.class) {
+			return Integer.class;
+		}
+		else if (type == long.class) {
+			return Long.class;
+		}
+		else if (type == boolean.class) {
+			return Boolean.class;
+		}
+		else if (type == double.class) {
+			return Double.class;
+		}
+		else if (type == float.class) {
+			return Float.class;
+		}
+		else if (type == short.class) {
+			return Short.class;
+		}
+		else if (type == byte.class) {
+			return Byte.class;
+		}
+		else if (type == char.class) {
+			return Character.class;
+		}
+		return type;
+	}
+	
+	public static class Setter {
+		private MethodHandle handle;
+		private Class<?> type;
+		
+		private Setter(MethodHandle handle, Class<?> type) {
+			this.handle = handle;
+			this.type = type;
+		}
+		
+		/**
+		 * Whether the value can be passed to the setter as is
+		 */
+		public boolean accepts(Object value) {
+			// a setter that takes an object could still get a list
+			return value != null && type.isInstance(value) && !isContainer(value.getClass());
+		}
+		
+		public void set(Object bean, Object value) {
+			try {
+				handle.invokeExact(bean, value);
+			}
+			catch (RuntimeException e) {
+				throw e;
+			}
+			catch (Error e) {
+				throw e;
+			}
+			catch (Throwable e) {
+				throw new RuntimeException(e);
+			}
+		}
+	}
+}
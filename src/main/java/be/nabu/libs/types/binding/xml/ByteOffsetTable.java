@@ -0,0 +1,81 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.util.Arrays;
+
+/**
+ * Maps character offsets to byte offsets at regular intervals
+ * Each checkpoint is a position where the decoder had fully consumed the bytes for the characters it produced, so a new decoder can start there
+ * To get to an arbitrary character offset you seek to the byte offset of the nearest preceding checkpoint and decode the (limited) remainder
+ */
+public class ByteOffsetTable {
+
+	/**
+	 * The minimum amount of characters between checkpoints
+	 */
+	private long interval;
+	
+	private long [] characters = new long[256], bytes = new long[256];
+	private int size;
+	
+	public ByteOffsetTable() {
+		this(65536);
+	}
+	
+	public ByteOffsetTable(long interval) {
+		this.interval = interval;
+	}
+	
+	public void add(long characterOffset, long byteOffset) {
+		if (size > 0 && characterOffset - characters[size - 1] < interval) {
+			return;
+		}
+		if (size == characters.length) {
+			characters = Arrays.copyOf(characters, size * 2);
+			bytes = Arrays.copyOf(bytes, size * 2);
+		}
+		characters[size] = characterOffset;
+		bytes[size] = byteOffset;
+		size++;
+	}
+	
+	/**
+	 * Returns the character and byte offset of the last checkpoint at or before the given character offset
+	 */
+	public long [] getCheckpoint(long characterOffset) {
+		int index = Arrays.binarySearch(characters, 0, size, characterOffset);
+		if (index < 0) {
+			index = -index - 2;
+		}
+		return index < 0 ? new long[] { 0, 0 } : new long[] { characters[index], bytes[index] };
+	}
+	
+	public int getSize() {
+		return size;
+	}
+	
+	public long getCharacterOffset(int index) {
+		return characters[index];
+	}
+	
+	public long getByteOffset(int index) {
+		return bytes[index];
+	}
+}
@@ -0,0 +1,69 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.util.ArrayList;
+import java.util.List;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.Unmarshallable;
+import be.nabu.libs.types.base.CollectionFormat;
+
+/**
+ * Splits collection formatted values without going through a regex
+ * The result is the same as String.split() with a quoted separator: trailing empty parts are dropped
+ */
+public class CollectionSplitter {
+
+	private String separator;
+	
+	public CollectionSplitter(CollectionFormat format) {
+		this.separator = String.valueOf(format.getCharacter());
+	}
+	
+	public List<Object> unmarshal(String value, Unmarshallable<?> unmarshallable, Value<?>...properties) {
+		// first count the parts so we can presize
+		int amount = 1;
+		for (int index = value.indexOf(separator); index >= 0; index = value.indexOf(separator, index + separator.length())) {
+			amount++;
+		}
+		int [] starts = new int[amount];
+		int [] ends = new int[amount];
+		int start = 0;
+		for (int i = 0; i < amount - 1; i++) {
+			int index = value.indexOf(separator, start);
+			starts[i] = start;
+			ends[i] = index;
+			start = index + separator.length();
+		}
+		starts[amount - 1] = start;
+		ends[amount - 1] = value.length();
+		// if there is at least one separator, trailing empty parts are dropped
+		if (amount > 1) {
+			while (amount > 0 && starts[amount - 1] == ends[amount - 1]) {
+				amount--;
+			}
+		}
+		List<Object> parts = new ArrayList<Object>(amount);
+		for (int i = 0; i < amount; i++) {
+			parts.add(unmarshallable.unmarshal(value.substring(starts[i], ends[i]), properties));
+		}
+		return parts;
+	}
+}
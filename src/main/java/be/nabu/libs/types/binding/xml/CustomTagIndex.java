@@ -0,0 +1,87 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nabu.libs.types.DefinedTypeResolverFactory;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.api.TypeRegistry;
+
+/**
+ * The custom tag mapping goes from type id to tag, this is the reverse index from tag to type id
+ * The mapping is exposed as a mutable map so the index remembers which version of the mapping it was built for
+ * The types themselves are resolved every time, they can be redeployed without us knowing
+ */
+public class CustomTagIndex {
+
+	private Map<String, String> mapping;
+	private int hashCode;
+	
+	/**
+	 * The tag to type id
+	 */
+	private Map<String, String> ids = new HashMap<String, String>();
+	
+	public CustomTagIndex(Map<String, String> mapping) {
+		this.mapping = mapping;
+		this.hashCode = mapping.hashCode();
+		// if multiple ids map to the same tag, the last one wins
+		for (Map.Entry<String, String> entry : mapping.entrySet()) {
+			if (entry.getValue() != null) {
+				ids.put(entry.getValue(), entry.getKey());
+			}
+		}
+	}
+	
+	/**
+	 * Whether the index is still valid for the given mapping
+	 */
+	public boolean isFor(Map<String, String> mapping) {
+		return this.mapping == mapping && hashCode == mapping.hashCode();
+	}
+	
+	public boolean isMapped(String tag) {
+		return ids.containsKey(tag);
+	}
+	
+	/**
+	 * Returns null if the tag is not mapped or the type can not be resolved
+	 */
+	public Type resolve(String tag, TypeRegistry registry, String namespace) {
+		String id = ids.get(tag);
+		if (id == null) {
+			return null;
+		}
+		Type type = null;
+		if (registry != null) {
+			type = registry.getComplexType(namespace, id);
+		}
+		// if all else fails: resolve it against the the defined type factory
+		if (type == null) {
+			type = DefinedTypeResolverFactory.getInstance().getResolver().resolve(id);
+		}
+		return type;
+	}
+	
+	public String getId(String tag) {
+		return ids.get(tag);
+	}
+}
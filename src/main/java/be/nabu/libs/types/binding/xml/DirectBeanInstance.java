@@ -0,0 +1,52 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import be.nabu.libs.types.java.BeanInstance;
+
+/**
+ * A bean instance that calls the setters directly through method handles if the value can be passed as is
+ * Everything else (paths, attributes, conversions,...) goes through the regular bean instance
+ */
+public class DirectBeanInstance<T> extends BeanInstance<T> {
+
+	private T bean;
+	private BeanAccessors accessors;
+	
+	public DirectBeanInstance(T bean, BeanAccessors accessors) {
+		super(bean);
+		this.bean = bean;
+		this.accessors = accessors;
+	}
+
+	@Override
+	public void set(String path, Object value) {
+		BeanAccessors.Setter setter = value == null ? null : accessors.getSetter(path);
+		if (setter != null) {
+			// always unwrap, a setter that takes an object would otherwise accept the wrapper itself
+			Object direct = value instanceof BeanInstance ? ((BeanInstance<?>) value).getUnwrapped() : value;
+			if (setter.accepts(direct)) {
+				setter.set(bean, direct);
+				return;
+			}
+		}
+		super.set(path, value);
+	}
+	
+}
@@ -0,0 +1,210 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.InputStream;
+import java.io.Reader;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+import be.nabu.libs.types.api.SimpleType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.api.Unmarshallable;
+import be.nabu.libs.types.base.CollectionFormat;
+import be.nabu.libs.types.java.BeanType;
+import be.nabu.libs.types.properties.CollectionFormatProperty;
+
+/**
+ * Everything the parser needs to know about an element, calculated once when the element is first encountered
+ * The plan is immutable so it can be shared between parsers
+ */
+public class ElementPlan {
+
+	/**
+	 * The values that can be read with the stax2 typed access instead of going through a string
+	 */
+	public static final int TYPED_NONE = 0, TYPED_INT = 1, TYPED_LONG = 2, TYPED_FLOAT = 3, TYPED_DOUBLE = 4, TYPED_BOOLEAN = 5, TYPED_BINARY = 6;
+
+	private final Element<?> element;
+	private final Value<?> [] properties;
+
+	/**
+	 * Whether the element is a list
+	 */
+	private final boolean list;
+
+	/**
+	 * The collection format if one was explicitly set
+	 */
+	private final CollectionFormat collectionFormat;
+
+	/**
+	 * The first unmarshallable type in the type hierarchy of the element
+	 */
+	private final Unmarshallable<?> unmarshallable;
+
+	/**
+	 * For simple complex types, this is the first unmarshallable type in the hierarchy of the value field
+	 */
+	private final Unmarshallable<?> valueUnmarshallable;
+
+	/**
+	 * Attributes are only unmarshalled if the type itself is unmarshallable, the hierarchy is not checked
+	 */
+	private final Unmarshallable<?> attributeUnmarshallable;
+
+	/**
+	 * Binary content (streams or byte arrays) is base64 encoded
+	 */
+	private final boolean binary, stream;
+	
+	/**
+	 * Large text content can be handed off as a spooled character sequence or reader if the type allows it
+	 */
+	private final boolean spoolable, reader;
+
+	/**
+	 * An Object.class bean accepts anything
+	 */
+	private final boolean wildcard;
+	
+	private final int typedKind;
+	
+	/**
+	 * Splits collection formatted values of lists, attributes default to space separated values
+	 */
+	private final CollectionSplitter splitter;
+
+	@SuppressWarnings("rawtypes")
+	public ElementPlan(Element<?> element) {
+		this.element = element;
+		this.properties = element.getProperties();
+		Type type = element.getType();
+		this.list = type.isList(properties);
+		Value<CollectionFormat> collectionFormatProperty = element.getProperty(CollectionFormatProperty.getInstance());
+		this.collectionFormat = collectionFormatProperty == null ? null : collectionFormatProperty.getValue();
+		this.unmarshallable = getUnmarshallable(type);
+		if (type instanceof ComplexType) {
+			Element<?> valueElement = ((ComplexType) type).get(ComplexType.SIMPLE_TYPE_VALUE);
+			this.valueUnmarshallable = valueElement == null ? null : getUnmarshallable(valueElement.getType());
+		}
+		else {
+			this.valueUnmarshallable = unmarshallable;
+		}
+		this.attributeUnmarshallable = type instanceof Unmarshallable ? (Unmarshallable<?>) type : null;
+		Class<?> instanceClass = type instanceof SimpleType ? ((SimpleType) type).getInstanceClass() : null;
+		this.stream = instanceClass != null && InputStream.class.isAssignableFrom(instanceClass);
+		this.binary = stream || (instanceClass != null && byte[].class.isAssignableFrom(instanceClass));
+		this.reader = Reader.class.equals(instanceClass);
+		this.spoolable = collectionFormat == null && (reader || CharSequence.class.equals(instanceClass));
+		this.wildcard = type instanceof BeanType && ((BeanType<?>) type).getBeanClass().equals(Object.class);
+		this.splitter = list ? new CollectionSplitter(collectionFormat == null ? CollectionFormat.SSV : collectionFormat) : null;
+		this.typedKind = type instanceof ComplexType || collectionFormat != null ? TYPED_NONE : getTypedKind(instanceClass, unmarshallable, binary);
+	}
+	
+	private static int getTypedKind(Class<?> instanceClass, Unmarshallable<?> unmarshallable, boolean binary) {
+		if (instanceClass == null) {
+			return TYPED_NONE;
+		}
+		// binary content is only decoded by us if there is no unmarshallable
+		else if (unmarshallable == null) {
+			return binary ? TYPED_BINARY : TYPED_NONE;
+		}
+		else if (Integer.class.equals(instanceClass) || int.class.equals(instanceClass)) {
+			return TYPED_INT;
+		}
+		else if (Long.class.equals(instanceClass) || long.class.equals(instanceClass)) {
+			return TYPED_LONG;
+		}
+		else if (Float.class.equals(instanceClass) || float.class.equals(instanceClass)) {
+			return TYPED_FLOAT;
+		}
+		else if (Double.class.equals(instanceClass) || double.class.equals(instanceClass)) {
+			return TYPED_DOUBLE;
+		}
+		else if (Boolean.class.equals(instanceClass) || boolean.class.equals(instanceClass)) {
+			return TYPED_BOOLEAN;
+		}
+		return TYPED_NONE;
+	}
+
+	private static Unmarshallable<?> getUnmarshallable(Type type) {
+		while (type != null && !(type instanceof Unmarshallable)) {
+			type = type.getSuperType();
+		}
+		return (Unmarshallable<?>) type;
+	}
+
+	public Element<?> getElement() {
+		return element;
+	}
+
+	public Value<?>[] getProperties() {
+		return properties;
+	}
+
+	public boolean isList() {
+		return list;
+	}
+
+	public CollectionFormat getCollectionFormat() {
+		return collectionFormat;
+	}
+
+	public Unmarshallable<?> getUnmarshallable() {
+		return unmarshallable;
+	}
+
+	public Unmarshallable<?> getValueUnmarshallable() {
+		return valueUnmarshallable;
+	}
+
+	public Unmarshallable<?> getAttributeUnmarshallable() {
+		return attributeUnmarshallable;
+	}
+
+	public boolean isBinary() {
+		return binary;
+	}
+
+	public boolean isStream() {
+		return stream;
+	}
+
+	public boolean isSpoolable() {
+		return spoolable;
+	}
+
+	public boolean isReader() {
+		return reader;
+	}
+
+	public boolean isWildcard() {
+		return wildcard;
+	}
+
+	public CollectionSplitter getSplitter() {
+		return splitter;
+	}
+
+	public int getTypedKind() {
+		return typedKind;
+	}
+
+}
@@ -0,0 +1,106 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.List;
+
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.utils.io.IOUtils;
+
+/**
+ * A complex element that is only parsed the first time it is accessed
+ * We only keep the character offset where the element starts, like the windowed lists do
+ */
+public class LazyComplexContent implements ComplexContent {
+
+	private ReadableResource resource;
+	private long offset;
+	private ComplexType type;
+	private PartialXMLUnmarshaller unmarshaller;
+	private volatile ComplexContent content;
+	
+	public LazyComplexContent(ReadableResource resource, long offset, ComplexType type, PartialXMLUnmarshaller unmarshaller) {
+		this.resource = resource;
+		this.offset = offset;
+		this.type = type;
+		this.unmarshaller = unmarshaller;
+	}
+	
+	@Override
+	public ComplexType getType() {
+		return type;
+	}
+
+	@Override
+	public void set(String path, Object value) {
+		materialize().set(path, value);
+	}
+
+	@Override
+	public Object get(String path) {
+		return materialize().get(path);
+	}
+	
+	public boolean isMaterialized() {
+		return content != null;
+	}
+	
+	public long getOffset() {
+		return offset;
+	}
+	
+	/**
+	 * Parses the element if this has not happened yet
+	 */
+	public ComplexContent materialize() {
+		if (content == null) {
+			synchronized(this) {
+				if (content == null) {
+					try {
+						InputStream input = IOUtils.toInputStream(resource.getReadable(), true);
+						try {
+							List<ComplexContent> result = unmarshaller.unmarshal(input, offset, 1);
+							content = result.get(0);
+						}
+						finally {
+							input.close();
+							// in case a cursor was opened after all
+							unmarshaller.close();
+						}
+					}
+					catch (IOException e) {
+						throw new RuntimeException("Could not parse the element at offset " + offset + " in " + resource, e);
+					}
+					// we no longer need it
+					unmarshaller = null;
+				}
+			}
+		}
+		return content;
+	}
+	
+	@Override
+	public String toString() {
+		return content == null ? "lazy " + type + " at offset " + offset : content.toString();
+	}
+}
@@ -0,0 +1,93 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.libs.types.binding.BindingUtils;
+
+/**
+ * Maps the tag names as they appear in the document to the names we use, the camel casing and renaming is only done once per distinct name
+ * The parsers hand us the same (interned) string instances for the same name, so a lookup is cheap
+ * The table is shared by all the parses of a binding, if you change the rename mapping itself after setting it, you need to set it again
+ */
+public class NameTable {
+
+	/**
+	 * Documents with random tag names should not make us grow forever, beyond this we simply calculate
+	 */
+	private static final int MAX_NAMES = 10000;
+	
+	private boolean camelCaseDashes, camelCaseUnderscores;
+	private Map<String, String> renameTag;
+	private Map<String, Name> names = new ConcurrentHashMap<String, Name>();
+	
+	public NameTable(boolean camelCaseDashes, boolean camelCaseUnderscores, Map<String, String> renameTag) {
+		this.camelCaseDashes = camelCaseDashes;
+		this.camelCaseUnderscores = camelCaseUnderscores;
+		this.renameTag = renameTag;
+	}
+	
+	public Name get(String raw) {
+		Name name = names.get(raw);
+		if (name == null) {
+			String preprocessed = preprocess(raw);
+			String renamed = renameTag != null && renameTag.containsKey(preprocessed) ? renameTag.get(preprocessed) : preprocessed;
+			name = new Name(preprocessed, renamed);
+			if (names.size() < MAX_NAMES) {
+				names.put(raw, name);
+			}
+		}
+		return name;
+	}
+	
+	private String preprocess(String name) {
+		if (camelCaseDashes) {
+			name = BindingUtils.camelCaseCharacter(name, '-');
+		}
+		if (camelCaseUnderscores) {
+			name = BindingUtils.camelCaseCharacter(name, '_');			
+		}
+		return name;
+	}
+	
+	public static class Name {
+		private final String preprocessed, renamed;
+
+		Name(String preprocessed, String renamed) {
+			this.preprocessed = preprocessed;
+			this.renamed = renamed;
+		}
+
+		/**
+		 * The name after camel casing, this is also used for attributes
+		 */
+		public String getPreprocessed() {
+			return preprocessed;
+		}
+
+		/**
+		 * The name after camel casing and renaming
+		 */
+		public String getRenamed() {
+			return renamed;
+		}
+	}
+}
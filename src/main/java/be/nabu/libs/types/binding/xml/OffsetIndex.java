@@ -0,0 +1,225 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * The offsets of all the items in the windowed lists of a document, in the order the lists were created
+ * This allows us to reopen a document without parsing all the windowed items again
+ */
+public class OffsetIndex {
+	
+	private static final int VERSION = 3;
+	
+	/**
+	 * The size and modification time of the resource the index was built for
+	 */
+	private long size, lastModified;
+	
+	private List<ListIndex> lists = new ArrayList<ListIndex>();
+	
+	/**
+	 * The byte offset checkpoints of the resource (if the charset allows it)
+	 */
+	private ByteOffsetTable byteOffsets;
+	
+	/**
+	 * Whether a parse that skips the indexed items matches a full parse, this is not the case for example with nested windows
+	 * If not, we don't try again for this version of the resource
+	 */
+	private boolean skippable = true;
+	
+	public ListIndex addList(String path, Map<String, String> namespaces) {
+		ListIndex list = new ListIndex(path, namespaces);
+		lists.add(list);
+		return list;
+	}
+	
+	public List<ListIndex> getLists() {
+		return lists;
+	}
+	
+	public long getSize() {
+		return size;
+	}
+
+	public void setSize(long size) {
+		this.size = size;
+	}
+
+	public long getLastModified() {
+		return lastModified;
+	}
+
+	public void setLastModified(long lastModified) {
+		this.lastModified = lastModified;
+	}
+
+	public ByteOffsetTable getByteOffsets() {
+		return byteOffsets;
+	}
+
+	public void setByteOffsets(ByteOffsetTable byteOffsets) {
+		this.byteOffsets = byteOffsets;
+	}
+
+	public boolean isSkippable() {
+		return skippable;
+	}
+
+	public void setSkippable(boolean skippable) {
+		this.skippable = skippable;
+	}
+
+	public void write(DataOutputStream output) throws IOException {
+		output.writeInt(VERSION);
+		output.writeLong(size);
+		output.writeLong(lastModified);
+		output.writeBoolean(skippable);
+		output.writeInt(lists.size());
+		for (ListIndex list : lists) {
+			output.writeUTF(list.path);
+			output.writeInt(list.namespaces.size());
+			for (Map.Entry<String, String> entry : list.namespaces.entrySet()) {
+				output.writeBoolean(entry.getKey() != null);
+				if (entry.getKey() != null) {
+					output.writeUTF(entry.getKey());
+				}
+				output.writeUTF(entry.getValue());
+			}
+			output.writeInt(list.size);
+			for (int i = 0; i < list.size; i++) {
+				output.writeLong(list.offsets[i]);
+				output.writeLong(list.ends[i]);
+			}
+		}
+		output.writeBoolean(byteOffsets != null);
+		if (byteOffsets != null) {
+			output.writeInt(byteOffsets.getSize());
+			for (int i = 0; i < byteOffsets.getSize(); i++) {
+				output.writeLong(byteOffsets.getCharacterOffset(i));
+				output.writeLong(byteOffsets.getByteOffset(i));
+			}
+		}
+	}
+	
+	/**
+	 * Returns null if the index was written by an incompatible version
+	 */
+	public static OffsetIndex read(DataInputStream input) throws IOException {
+		if (input.readInt() != VERSION) {
+			return null;
+		}
+		OffsetIndex index = new OffsetIndex();
+		index.size = input.readLong();
+		index.lastModified = input.readLong();
+		index.skippable = input.readBoolean();
+		int amountOfLists = input.readInt();
+		for (int i = 0; i < amountOfLists; i++) {
+			String path = input.readUTF();
+			Map<String, String> namespaces = new HashMap<String, String>();
+			int amountOfNamespaces = input.readInt();
+			for (int j = 0; j < amountOfNamespaces; j++) {
+				String prefix = input.readBoolean() ? input.readUTF() : null;
+				namespaces.put(prefix, input.readUTF());
+			}
+			ListIndex list = index.addList(path, namespaces);
+			int amountOfOffsets = input.readInt();
+			list.offsets = new long[amountOfOffsets];
+			list.ends = new long[amountOfOffsets];
+			for (int j = 0; j < amountOfOffsets; j++) {
+				list.offsets[j] = input.readLong();
+				list.ends[j] = input.readLong();
+			}
+			list.size = amountOfOffsets;
+		}
+		if (input.readBoolean()) {
+			// the checkpoints were already spaced out when they were recorded
+			index.byteOffsets = new ByteOffsetTable(0);
+			int amountOfCheckpoints = input.readInt();
+			for (int i = 0; i < amountOfCheckpoints; i++) {
+				index.byteOffsets.add(input.readLong(), input.readLong());
+			}
+		}
+		return index;
+	}
+	
+	public static class ListIndex {
+		private String path;
+		private Map<String, String> namespaces;
+		private long [] offsets = new long[64];
+		/**
+		 * Where each item ends, other elements can appear in between the items so we can only skip the items themselves
+		 */
+		private long [] ends = new long[64];
+		private int size;
+		
+		public ListIndex(String path, Map<String, String> namespaces) {
+			this.path = path;
+			this.namespaces = namespaces;
+		}
+		
+		public void setOffset(int index, long offset) {
+			ensureCapacity(index);
+			offsets[index] = offset;
+			size = Math.max(size, index + 1);
+		}
+		
+		public void setEnd(int index, long end) {
+			ensureCapacity(index);
+			ends[index] = end;
+			size = Math.max(size, index + 1);
+		}
+		
+		private void ensureCapacity(int index) {
+			if (index >= offsets.length) {
+				offsets = Arrays.copyOf(offsets, Math.max(index + 1, offsets.length * 2));
+				ends = Arrays.copyOf(ends, offsets.length);
+			}
+		}
+		
+		public long getOffset(int index) {
+			return offsets[index];
+		}
+		
+		public int getSize() {
+			return size;
+		}
+
+		public long getEnd(int index) {
+			return ends[index];
+		}
+
+		public String getPath() {
+			return path;
+		}
+
+		public Map<String, String> getNamespaces() {
+			return namespaces;
+		}
+	}
+}
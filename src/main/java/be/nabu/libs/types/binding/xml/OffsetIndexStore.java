@@ -0,0 +1,138 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.Charset;
+import java.nio.file.Files;
+import java.nio.file.StandardCopyOption;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.libs.types.binding.api.Window;
+
+/**
+ * Stores offset indexes as sidecar files in a directory
+ * The file is keyed on the location of the resource and the window paths, the size and modification time of the resource are validated when loading
+ * Resources that have no location, no size or no modification time are never indexed
+ */
+public class OffsetIndexStore {
+
+	private File directory;
+
+	public OffsetIndexStore(File directory) {
+		this.directory = directory;
+	}
+	
+	public OffsetIndex load(ReadableResource resource, Window [] windows) {
+		File file = getFile(resource, windows);
+		if (file == null || !file.exists()) {
+			return null;
+		}
+		try {
+			DataInputStream input = new DataInputStream(new BufferedInputStream(new FileInputStream(file)));
+			try {
+				OffsetIndex index = OffsetIndex.read(input);
+				// the resource has changed since we indexed it
+				if (index != null && (index.getSize() != getSize(resource) || index.getLastModified() != getLastModified(resource))) {
+					return null;
+				}
+				return index;
+			}
+			finally {
+				input.close();
+			}
+		}
+		catch (IOException e) {
+			// a corrupt index is simply rebuilt
+			return null;
+		}
+	}
+	
+	public void store(ReadableResource resource, Window [] windows, OffsetIndex index) throws IOException {
+		File file = getFile(resource, windows);
+		if (file == null) {
+			return;
+		}
+		index.setSize(getSize(resource));
+		index.setLastModified(getLastModified(resource));
+		if (!directory.exists()) {
+			directory.mkdirs();
+		}
+		// write to a temporary file first so concurrent readers never see a partial index
+		File temporary = File.createTempFile(file.getName(), ".tmp", directory);
+		try {
+			DataOutputStream output = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(temporary)));
+			try {
+				index.write(output);
+			}
+			finally {
+				output.close();
+			}
+			Files.move(temporary.toPath(), file.toPath(), StandardCopyOption.REPLACE_EXISTING);
+		}
+		finally {
+			temporary.delete();
+		}
+	}
+	
+	private File getFile(ReadableResource resource, Window [] windows) {
+		if (!(resource instanceof LocatableResource) || getSize(resource) < 0 || getLastModified(resource) < 0) {
+			return null;
+		}
+		StringBuilder builder = new StringBuilder(((LocatableResource) resource).getUri().toString());
+		for (Window window : windows) {
+			builder.append("\n").append(window.getPath());
+		}
+		try {
+			byte[] digest = MessageDigest.getInstance("SHA-1").digest(builder.toString().getBytes(Charset.forName("UTF-8")));
+			StringBuilder name = new StringBuilder();
+			for (byte single : digest) {
+				name.append(String.format("%02x", single));
+			}
+			return new File(directory, name.toString() + ".xmlidx");
+		}
+		catch (NoSuchAlgorithmException e) {
+			throw new RuntimeException(e);
+		}
+	}
+	
+	private static long getSize(ReadableResource resource) {
+		return resource instanceof FiniteResource ? ((FiniteResource) resource).getSize() : -1;
+	}
+	
+	private static long getLastModified(ReadableResource resource) {
+		return resource instanceof TimestampedResource && ((TimestampedResource) resource).getLastModified() != null ? ((TimestampedResource) resource).getLastModified().getTime() : -1;
+	}
+
+	public File getDirectory() {
+		return directory;
+	}
+}
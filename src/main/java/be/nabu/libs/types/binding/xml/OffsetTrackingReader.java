@@ -0,0 +1,125 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.CharBuffer;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/**
+ * Decodes a byte stream and keeps track of which byte offset matches which character offset
+ * This only works for charsets where a new decoder can start at any character boundary, for other charsets no table is built
+ */
+class OffsetTrackingReader extends Reader {
+
+	private InputStream input;
+	private CharsetDecoder decoder;
+	private ByteBuffer bytes = ByteBuffer.allocate(8192);
+	private CharBuffer chars = CharBuffer.allocate(8192);
+	private long bytesConsumed, charactersProduced;
+	private boolean eof, flushed;
+	private ByteOffsetTable table;
+	
+	public OffsetTrackingReader(InputStream input, Charset charset) {
+		this.input = input;
+		this.decoder = charset.newDecoder()
+			.onMalformedInput(CodingErrorAction.REPLACE)
+			.onUnmappableCharacter(CodingErrorAction.REPLACE);
+		this.table = isSeekable(charset) ? new ByteOffsetTable() : null;
+		// nothing decoded yet
+		chars.flip();
+	}
+	
+	/**
+	 * Stateful charsets (e.g. byte order mark detection or shift sequences) can not be resumed at an arbitrary offset
+	 */
+	static boolean isSeekable(Charset charset) {
+		String name = charset.name();
+		return name.equals("UTF-8") || name.equals("US-ASCII") || name.equals("UTF-16BE") || name.equals("UTF-16LE") 
+			|| (charset.canEncode() && charset.newEncoder().maxBytesPerChar() == 1);
+	}
+	
+	private void fill() throws IOException {
+		if (table != null) {
+			table.add(charactersProduced, bytesConsumed);
+		}
+		chars.clear();
+		while (chars.position() == 0) {
+			if (!eof && bytes.hasRemaining()) {
+				int read = input.read(bytes.array(), bytes.arrayOffset() + bytes.position(), bytes.remaining());
+				if (read < 0) {
+					eof = true;
+				}
+				else {
+					bytes.position(bytes.position() + read);
+				}
+			}
+			bytes.flip();
+			CoderResult result = decoder.decode(bytes, chars, eof);
+			bytesConsumed += bytes.position();
+			bytes.compact();
+			if (result.isError()) {
+				result.throwException();
+			}
+			if (eof && chars.position() == 0) {
+				if (!flushed) {
+					decoder.flush(chars);
+					flushed = true;
+				}
+				break;
+			}
+		}
+		chars.flip();
+		charactersProduced += chars.remaining();
+	}
+	
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		if (len == 0) {
+			return 0;
+		}
+		if (!chars.hasRemaining()) {
+			fill();
+			if (!chars.hasRemaining()) {
+				return -1;
+			}
+		}
+		int amount = Math.min(len, chars.remaining());
+		chars.get(cbuf, off, amount);
+		return amount;
+	}
+
+	@Override
+	public void close() throws IOException {
+		input.close();
+	}
+
+	/**
+	 * The table of offsets or null if the charset does not allow seeking
+	 */
+	public ByteOffsetTable getTable() {
+		return table;
+	}
+}
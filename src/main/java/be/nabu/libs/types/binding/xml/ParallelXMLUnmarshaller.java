@@ -0,0 +1,322 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.io.StringReader;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.IdentityHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.XMLEvent;
+
+import org.codehaus.stax2.XMLStreamReader2;
+import org.xml.sax.SAXException;
+
+import be.nabu.libs.property.api.Value;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.MarshalException;
+import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.java.BeanInstance;
+
+/**
+ * Parses a single large document in parallel by splitting it at the boundaries of a repeated element
+ * 
+ * A single (fast) stax pass parses everything that is not a record and skips over the records, only noting where they start and end
+ * The records are grouped into chunks which are parsed as fragments on the fork join pool, the results are added to their parent in document order
+ * 
+ * This requires woodstox for the character offsets
+ */
+public class ParallelXMLUnmarshaller {
+
+	private XMLBinding binding;
+	private String recordPath;
+	
+	/**
+	 * How many records are parsed in a single task
+	 */
+	private int chunkSize = 1000;
+	
+	private ForkJoinPool pool = ForkJoinPool.commonPool();
+	
+	public ParallelXMLUnmarshaller(XMLBinding binding, String recordPath) {
+		this.binding = binding;
+		this.recordPath = recordPath;
+	}
+	
+	public ComplexContent unmarshal(ReadableResource resource, Value<?>...values) throws IOException {
+		XMLParserSAX saxHandler = binding.newHandler(resource, new Window[0], values);
+		// we set the record path but no handler, this allows us to detect records without altering the actual parse
+		saxHandler.setRecordPath(recordPath);
+		
+		CapturingReader reader = new CapturingReader(binding.getReader(resource));
+		List<RecordGroup> groups = new ArrayList<RecordGroup>();
+		Map<ComplexContent, Map<String, RecordGroup>> groupsByParent = new IdentityHashMap<ComplexContent, Map<String, RecordGroup>>();
+		boolean completed = false;
+		try {
+			try {
+				XMLStreamReader streamReader = StAXFactories.getDocumentFactory().createXMLStreamReader(reader);
+				if (!(streamReader instanceof XMLStreamReader2)) {
+					throw new IOException("You are requesting parallel mode, this is currently only supported with woodstox");
+				}
+				XMLStreamReader2 streamReader2 = (XMLStreamReader2) streamReader;
+				XMLParserStAX staxParser = new XMLParserStAX(saxHandler);
+				saxHandler.clear();
+				
+				Chunk chunk = null;
+				while (streamReader.hasNext()) {
+					int eventType = streamReader.next();
+					if (eventType == XMLEvent.START_ELEMENT && saxHandler.isRecordStart(streamReader.getLocalName())) {
+						long start = streamReader2.getLocationInfo().getStartingCharOffset();
+						ComplexContent parent = saxHandler.getCurrentContent();
+						if (chunk == null) {
+							String name = saxHandler.normalize(streamReader.getLocalName());
+							Map<String, RecordGroup> parentGroups = groupsByParent.get(parent);
+							if (parentGroups == null) {
+								parentGroups = new HashMap<String, RecordGroup>();
+								groupsByParent.put(parent, parentGroups);
+							}
+							RecordGroup group = parentGroups.get(name);
+							if (group == null) {
+								ElementPlan plan = saxHandler.getCurrentPlan().getChild(name);
+								if (plan == null || !(plan.getElement().getType() instanceof ComplexType)) {
+									throw new MarshalException("The record path " + recordPath + " does not point to a complex element");
+								}
+								group = new RecordGroup(parent, name, newUnmarshaller(saxHandler, plan));
+								parentGroups.put(name, group);
+								groups.add(group);
+							}
+							chunk = new Chunk(group, start);
+						}
+						// we don't need the content, only where it ends
+						streamReader2.skipElement();
+						chunk.end = streamReader2.getLocationInfo().getEndingCharOffset();
+						chunk.amount++;
+						if (chunk.amount >= chunkSize) {
+							submit(chunk, reader);
+							chunk = null;
+						}
+					}
+					else {
+						// records in a chunk must be consecutive, anything else in between ends it
+						if (eventType == XMLEvent.START_ELEMENT || eventType == XMLEvent.END_ELEMENT) {
+							if (chunk != null) {
+								submit(chunk, reader);
+								chunk = null;
+							}
+							reader.release(streamReader2.getLocationInfo().getStartingCharOffset());
+						}
+						staxParser.handle(streamReader, eventType);
+						if (saxHandler.isDone()) {
+							break;
+						}
+					}
+				}
+				if (chunk != null) {
+					submit(chunk, reader);
+				}
+			}
+			catch (XMLStreamException e) {
+				throw new IOException(e);
+			}
+			catch (SAXException e) {
+				throw new MarshalException(e);
+			}
+			
+			// reassemble in document order, each list is set in one go
+			for (RecordGroup group : groups) {
+				List<Object> records = new ArrayList<Object>();
+				for (ForkJoinTask<List<ComplexContent>> task : group.tasks) {
+					try {
+						for (ComplexContent record : task.get()) {
+							// the bean instance does not convert the items of a list that is set as a whole
+							records.add((binding.isUnwrapBeans() || group.parent instanceof BeanInstance) && record instanceof BeanInstance ? ((BeanInstance<?>) record).getUnwrapped() : record);
+						}
+					}
+					catch (InterruptedException e) {
+						throw new IOException(e);
+					}
+					catch (ExecutionException e) {
+						if (e.getCause() instanceof IOException) {
+							throw (IOException) e.getCause();
+						}
+						throw new MarshalException("Could not parse record: " + recordPath, e.getCause());
+					}
+				}
+				group.parent.set(group.name, records);
+			}
+			completed = true;
+		}
+		finally {
+			// no use in parsing the remaining chunks if we can't return a result
+			if (!completed) {
+				saxHandler.discardSpools();
+				for (RecordGroup group : groups) {
+					for (ForkJoinTask<List<ComplexContent>> task : group.tasks) {
+						task.cancel(true);
+					}
+				}
+			}
+			// the chunks are copied when they are submitted, the tasks don't need the reader
+			reader.close();
+		}
+		return saxHandler.getInstance();
+	}
+	
+	private PartialXMLUnmarshaller newUnmarshaller(XMLParserSAX saxHandler, ElementPlan plan) {
+		// take a snapshotted copy of the namespaces
+		PartialXMLUnmarshaller unmarshaller = new PartialXMLUnmarshaller(new HashMap<String, String>(saxHandler.getNamespaces()), (ComplexType) plan.getElement().getType(), binding.getCharset(), new Window[0], plan.getProperties());
+		unmarshaller.setCamelCaseDashes(binding.isCamelCaseDashes());
+		unmarshaller.setCamelCaseUnderscores(binding.isCamelCaseUnderscores());
+		unmarshaller.setIgnoreUndefined(binding.isIgnoreUndefined());
+		unmarshaller.setTrimContent(binding.isTrimContent());
+		unmarshaller.setAllowSuperTypes(binding.isAllowSuperTypes());
+		unmarshaller.setUnwrapBeans(binding.isUnwrapBeans());
+		unmarshaller.setCustomTagMapping(binding.getCustomTagMapping());
+		unmarshaller.setRenameTag(binding.getRenameTag());
+		unmarshaller.setTypedValues(binding.isTypedValues());
+		unmarshaller.setDirectBeans(binding.isDirectBeans());
+		unmarshaller.setBinarySpoolThreshold(binding.getBinarySpoolThreshold());
+		unmarshaller.setTextSpoolThreshold(binding.getTextSpoolThreshold());
+		unmarshaller.setNameTable(binding.getNameTable());
+		unmarshaller.setCustomTagIndex(binding.getCustomTagIndex());
+		return unmarshaller;
+	}
+	
+	private void submit(final Chunk chunk, CapturingReader reader) {
+		final String content = reader.extract(chunk.start, chunk.end);
+		reader.release(chunk.end);
+		final PartialXMLUnmarshaller unmarshaller = chunk.group.unmarshaller;
+		final int amount = chunk.amount;
+		chunk.group.tasks.add(pool.submit(() -> unmarshaller.unmarshal(new StringReader(content), amount)));
+	}
+	
+	public int getChunkSize() {
+		return chunkSize;
+	}
+
+	public void setChunkSize(int chunkSize) {
+		this.chunkSize = chunkSize;
+	}
+
+	public ForkJoinPool getPool() {
+		return pool;
+	}
+
+	public void setPool(ForkJoinPool pool) {
+		this.pool = pool;
+	}
+
+	/**
+	 * All the records that belong in the same list
+	 */
+	private static class RecordGroup {
+		private ComplexContent parent;
+		private String name;
+		private PartialXMLUnmarshaller unmarshaller;
+		private List<ForkJoinTask<List<ComplexContent>>> tasks = new ArrayList<ForkJoinTask<List<ComplexContent>>>();
+		
+		public RecordGroup(ComplexContent parent, String name, PartialXMLUnmarshaller unmarshaller) {
+			this.parent = parent;
+			this.name = name;
+			this.unmarshaller = unmarshaller;
+		}
+	}
+	
+	/**
+	 * A number of consecutive records that are parsed together
+	 */
+	private static class Chunk {
+		private RecordGroup group;
+		private long start, end;
+		private int amount;
+		
+		public Chunk(RecordGroup group, long start) {
+			this.group = group;
+			this.start = start;
+		}
+	}
+	
+	/**
+	 * Keeps the characters that have been read so we can extract the records once we know where they end
+	 * Everything before the released offset is dropped so the buffer only holds the current chunk and the read ahead of the parser
+	 */
+	private static class CapturingReader extends FilterReader {
+		
+		private StringBuilder buffer = new StringBuilder();
+		
+		/**
+		 * The offset of the first character in the buffer
+		 */
+		private long bufferOffset;
+		
+		public CapturingReader(Reader in) {
+			super(in);
+		}
+
+		@Override
+		public int read() throws IOException {
+			int read = super.read();
+			if (read >= 0) {
+				buffer.append((char) read);
+			}
+			return read;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			int read = super.read(cbuf, off, len);
+			if (read > 0) {
+				buffer.append(cbuf, off, read);
+			}
+			return read;
+		}
+
+		@Override
+		public long skip(long n) throws IOException {
+			// we can not let the parent skip, we need the characters
+			char [] skipped = new char[(int) Math.min(n, 8192)];
+			int read = read(skipped, 0, skipped.length);
+			return read < 0 ? 0 : read;
+		}
+		
+		public String extract(long start, long end) {
+			return buffer.substring((int) (start - bufferOffset), (int) (end - bufferOffset));
+		}
+		
+		public void release(long offset) {
+			int amount = (int) (offset - bufferOffset);
+			if (amount > 0) {
+				buffer.delete(0, amount);
+				bufferOffset = offset;
+			}
+		}
+	}
+}
@@ -0,0 +1,184 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.lang.ref.ReferenceQueue;
+import java.lang.ref.SoftReference;
+import java.lang.ref.WeakReference;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Element;
+
+/**
+ * The parse plan of a complex type maps the child names to precalculated element plans
+ * Each element is only planned once, a cached plan is only used as long as the type still returns the same element for that name so children that are changed at runtime are picked up
+ * Names that do not exist are not remembered, if they are added to the type at runtime they are picked up
+ * 
+ * The plans are shared amongst all parsers and are keyed on the type instance, a redeployed type gets a new plan
+ * The plan only references its type weakly but the planned elements usually refer back to it, so an old type is released once its plan is reclaimed when memory runs low
+ */
+public class ParsePlan {
+
+	private static Map<Object, SoftReference<ParsePlan>> plans = new ConcurrentHashMap<Object, SoftReference<ParsePlan>>();
+	private static ReferenceQueue<ComplexType> queue = new ReferenceQueue<ComplexType>();
+	
+	/**
+	 * Looking up a plan happens for every complex element, we reuse a probe per thread instead of creating a new key every time
+	 */
+	private static ThreadLocal<Probe> probes = new ThreadLocal<Probe>() {
+		@Override
+		protected Probe initialValue() {
+			return new Probe();
+		}
+	};
+	
+	public static ParsePlan getPlan(ComplexType type) {
+		purge();
+		Probe probe = probes.get();
+		probe.type = type;
+		SoftReference<ParsePlan> reference;
+		try {
+			reference = plans.get(probe);
+		}
+		finally {
+			probe.type = null;
+		}
+		ParsePlan plan = reference == null ? null : reference.get();
+		if (plan == null) {
+			plan = new ParsePlan(type);
+			plans.put(new TypeKey(type, queue), new SoftReference<ParsePlan>(plan));
+		}
+		return plan;
+	}
+	
+	public static void clear() {
+		plans.clear();
+	}
+	
+	/**
+	 * Removes the plans of types that no longer exist
+	 */
+	private static void purge() {
+		Object key;
+		while ((key = queue.poll()) != null) {
+			plans.remove(key);
+		}
+	}
+	
+	/**
+	 * Identity based key that does not keep the type alive
+	 */
+	private static class TypeKey extends WeakReference<ComplexType> {
+		private int hashCode;
+		
+		private TypeKey(ComplexType type, ReferenceQueue<ComplexType> queue) {
+			super(type, queue);
+			this.hashCode = System.identityHashCode(type);
+		}
+		
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			if (object == this) {
+				return true;
+			}
+			ComplexType type = get();
+			return type != null && ((object instanceof TypeKey && ((TypeKey) object).get() == type) || (object instanceof Probe && ((Probe) object).type == type));
+		}
+	}
+	
+	/**
+	 * Matches the key of the type it currently holds
+	 */
+	private static class Probe {
+		private ComplexType type;
+		
+		@Override
+		public int hashCode() {
+			return System.identityHashCode(type);
+		}
+		
+		@Override
+		public boolean equals(Object object) {
+			return object == this || (type != null && object instanceof TypeKey && ((TypeKey) object).get() == type);
+		}
+	}
+	
+	private WeakReference<ComplexType> type;
+	
+	private Map<String, ElementPlan> children = new ConcurrentHashMap<String, ElementPlan>();
+	private Map<String, ElementPlan> attributes = new ConcurrentHashMap<String, ElementPlan>();
+	
+	private ParsePlan(ComplexType type) {
+		this.type = new WeakReference<ComplexType>(type);
+	}
+	
+	/**
+	 * Returns null if the type no longer exists
+	 */
+	public ComplexType getType() {
+		return type.get();
+	}
+
+	/**
+	 * Returns the plan for the child element or null if there is no such child
+	 */
+	public ElementPlan getChild(String name) {
+		ComplexType type = this.type.get();
+		Element<?> element = type == null ? null : type.get(name);
+		if (element == null) {
+			return null;
+		}
+		ElementPlan plan = children.get(name);
+		if (plan == null || plan.getElement() != element) {
+			plan = new ElementPlan(element);
+			children.put(name, plan);
+		}
+		return plan;
+	}
+	
+	/**
+	 * Attributes can be defined with or without an "@" prefix
+	 */
+	public ElementPlan getAttribute(String name) {
+		ComplexType type = this.type.get();
+		if (type == null) {
+			return null;
+		}
+		Element<?> element = type.get(name);
+		if (element == null) {
+			element = type.get("@" + name);
+		}
+		if (element == null) {
+			return null;
+		}
+		ElementPlan plan = attributes.get(name);
+		if (plan == null || plan.getElement() != element) {
+			plan = new ElementPlan(element);
+			attributes.put(name, plan);
+		}
+		return plan;
+	}
+}
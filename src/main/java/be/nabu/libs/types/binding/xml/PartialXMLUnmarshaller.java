@@ -17,29 +17,37 @@
 
 package be.nabu.libs.types.binding.xml;
 
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.Reader;
+import java.net.URI;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
 import java.util.List;
 import java.util.Map;
 
-import javax.xml.stream.XMLInputFactory;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
+import javax.xml.stream.events.XMLEvent;
+
+import org.codehaus.stax2.XMLStreamReader2;
 
 import org.xml.sax.SAXException;
 
 import be.nabu.libs.property.api.Value;
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.types.api.ComplexContent;
 import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.api.MarshalException;
 import be.nabu.libs.types.binding.api.PartialUnmarshaller;
 import be.nabu.libs.types.binding.api.Window;
+import be.nabu.utils.io.IOUtils;
 
-import com.ctc.wstx.api.WstxInputProperties;
 import com.ctc.wstx.sr.BasicStreamReader;
 
 public class PartialXMLUnmarshaller implements PartialUnmarshaller {
@@ -50,7 +58,35 @@ public class PartialXMLUnmarshaller implements PartialUnmarshaller {
 	private Value<?> [] values;
 	private Map<String, String> namespaces;
 	
-	private boolean camelCaseDashes, camelCaseUnderscores, trimContent = true, ignoreUndefined;
+	private boolean camelCaseDashes, camelCaseUnderscores, trimContent = true, ignoreUndefined, allowSuperTypes, unwrapBeans, typedValues, directBeans;
+	private Map<String, String> customTagMapping, renameTag;
+	private NameTable nameTable;
+	private CustomTagIndex customTagIndex;
+	private long binarySpoolThreshold = Long.MAX_VALUE;
+	private int textSpoolThreshold = Integer.MAX_VALUE;
+	
+	/**
+	 * Complex children of the parsed elements are parsed on first access, this requires the resource to be set
+	 */
+	private boolean lazy;
+	
+	/**
+	 * If available, we can seek to a byte offset instead of decoding everything before the offset
+	 */
+	private ByteOffsetTable byteOffsets;
+	
+	/**
+	 * The resource the offsets point into, the cursor opens its own stream on it
+	 */
+	private ReadableResource resource;
+	
+	/**
+	 * When a batch is requested at the offset where the previous batch stopped, we keep parsing with an open cursor instead of starting over
+	 * This keeps a stream open on the resource until a batch reaches the end of the list or close() is called
+	 * If you stop reading before the end of the list, you have to call close() yourself
+	 */
+	private boolean sequential;
+	private Cursor cursor;
 	
 	public PartialXMLUnmarshaller(Map<String, String> namespaces, ComplexType type, Charset charset, Window [] windows, Value<?>...values) {
 		this.type = type;
@@ -61,32 +97,124 @@ public class PartialXMLUnmarshaller implements PartialUnmarshaller {
 	}
 	
 	@Override
-	public List<ComplexContent> unmarshal(InputStream input, long offset, int batchSize) throws IOException {
-		Reader reader = new InputStreamReader(input, charset);
-		// go to the correct position
-		reader.skip(offset);
-		
-		XMLInputFactory factory = XMLInputFactory.newFactory();
-		if (factory instanceof com.ctc.wstx.stax.WstxInputFactory) {
-//			factory.setProperty(WstxInputProperties.P_INPUT_PARSING_MODE, WstxInputProperties.PARSING_MODE_DOCUMENTS);
-			factory.setProperty(WstxInputProperties.P_INPUT_PARSING_MODE, WstxInputProperties.PARSING_MODE_FRAGMENT);
+	public synchronized List<ComplexContent> unmarshal(InputStream input, long offset, int batchSize) throws IOException {
+		if (sequential && resource != null) {
+			// if we are asked for the batch right after the previous one, simply keep parsing
+			if (cursor != null) {
+				List<ComplexContent> results = cursor.next(offset, batchSize);
+				if (results != null) {
+					return results;
+				}
+				close();
+			}
+			// the cursor outlives this call so it can not use the stream we are given
+			cursor = new Cursor(open(offset), offset);
+			return cursor.read(batchSize, false);
+		}
+		// a local file can be repositioned directly, we don't need to read the stream we are given up to the offset
+		InputStream seeked = seek(offset);
+		if (seeked != null) {
+			Reader reader = position(seeked, offset, true);
+			try {
+				return unmarshal(reader, offset, batchSize);
+			}
+			finally {
+				reader.close();
+			}
+		}
+		return unmarshal(position(input, offset, false), offset, batchSize);
+	}
+	
+	/**
+	 * Closes the open cursor (if any), the next call will start from the offset it is given
+	 */
+	public synchronized void close() throws IOException {
+		if (cursor != null) {
+			Cursor cursor = this.cursor;
+			this.cursor = null;
+			cursor.close();
+		}
+	}
+	
+	/**
+	 * Opens a new stream on the resource that is positioned at the offset
+	 */
+	private Reader open(long offset) throws IOException {
+		InputStream seeked = seek(offset);
+		return seeked != null 
+			? position(seeked, offset, true)
+			: position(IOUtils.toInputStream(resource.getReadable(), true), offset, false);
+	}
+	
+	/**
+	 * If the resource is a local file, we open it ourselves at the byte offset of the nearest checkpoint
+	 * Returns null if this is not possible, the stream then has to be read up to the checkpoint
+	 */
+	private InputStream seek(long offset) throws IOException {
+		if (byteOffsets != null && resource instanceof LocatableResource) {
+			URI uri = ((LocatableResource) resource).getUri();
+			if (uri != null && "file".equals(uri.getScheme())) {
+				FileInputStream input = new FileInputStream(new File(uri));
+				try {
+					input.getChannel().position(byteOffsets.getCheckpoint(offset)[1]);
+				}
+				catch (IOException e) {
+					input.close();
+					throw e;
+				}
+				return input;
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * If the input is already positioned at the byte offset of the checkpoint, we only need to skip the characters after it
+	 */
+	private Reader position(InputStream input, long offset, boolean positioned) throws IOException {
+		Reader reader;
+		if (byteOffsets != null) {
+			// jump to the nearest checkpoint and only decode from there
+			long [] checkpoint = byteOffsets.getCheckpoint(offset);
+			if (!positioned) {
+				skipBytes(input, checkpoint[1]);
+			}
+			reader = new InputStreamReader(input, charset);
+			reader.skip(offset - checkpoint[0]);
+		}
+		else {
+			reader = new InputStreamReader(input, charset);
+			// go to the correct position
+			reader.skip(offset);
 		}
-		else
-			throw new IOException("You are requesting windowed mode, this is currently only supported with woodstox");
+		return reader;
+	}
+	
+	private static void skipBytes(InputStream input, long amount) throws IOException {
+		while (amount > 0) {
+			long skipped = input.skip(amount);
+			// skip() is allowed to skip nothing, check if we are at the end
+			if (skipped <= 0) {
+				if (input.read() < 0) {
+					throw new EOFException("Could not skip to byte offset, the stream ended " + amount + " bytes early");
+				}
+				skipped = 1;
+			}
+			amount -= skipped;
+		}
+	}
+	
+	/**
+	 * Parses a batch of elements from a reader that is positioned at the start of the first element
+	 */
+	List<ComplexContent> unmarshal(Reader reader, int batchSize) throws IOException {
+		return unmarshal(reader, 0, batchSize);
+	}
+	
+	private List<ComplexContent> unmarshal(Reader reader, long base, int batchSize) throws IOException {
 		try {
-			XMLStreamReader streamReader = factory.createXMLStreamReader(reader);
-			// we need to register the namespaces we encountered
-			for (String prefix : namespaces.keySet()) {
-				((BasicStreamReader) streamReader).getInputElementStack().addNsBinding(
-					prefix, namespaces.get(prefix));
-			}
-			XMLParserSAX saxParser = new XMLParserSAX(type, windows, values);
-			saxParser.setCamelCaseDashes(camelCaseDashes);
-			saxParser.setCamelCaseUnderscores(camelCaseUnderscores);
-			saxParser.setTrimContent(trimContent);
-			saxParser.setIgnoreUndefined(ignoreUndefined);
-			saxParser.setCharset(charset);
-			XMLParserStAX staxParser = new XMLParserStAX(saxParser);
+			XMLStreamReader streamReader = newStreamReader(reader);
+			XMLParserStAX staxParser = new XMLParserStAX(newParser(base));
 			List<ComplexContent> results = new ArrayList<ComplexContent>();
 			for (int i = 0; i < batchSize; i++) {
 				staxParser.parse(streamReader);
@@ -101,6 +229,164 @@ public class PartialXMLUnmarshaller implements PartialUnmarshaller {
 			throw new MarshalException(e);
 		}
 	}
+	
+	private XMLStreamReader newStreamReader(Reader reader) throws IOException, XMLStreamException {
+		XMLStreamReader streamReader = StAXFactories.getFragmentFactory().createXMLStreamReader(reader);
+		// we need to register the namespaces we encountered
+		for (String prefix : namespaces.keySet()) {
+			((BasicStreamReader) streamReader).getInputElementStack().addNsBinding(
+				prefix, namespaces.get(prefix));
+		}
+		return streamReader;
+	}
+	
+	/**
+	 * The base is the offset in the resource where the reader starts
+	 */
+	private XMLParserSAX newParser(long base) {
+		XMLParserSAX saxParser = new XMLParserSAX(type, windows, values);
+		saxParser.setCamelCaseDashes(camelCaseDashes);
+		saxParser.setCamelCaseUnderscores(camelCaseUnderscores);
+		saxParser.setTrimContent(trimContent);
+		saxParser.setIgnoreUndefined(ignoreUndefined);
+		saxParser.setCharset(charset);
+		saxParser.setAllowSuperTypes(allowSuperTypes);
+		saxParser.setUnwrapBeans(unwrapBeans);
+		saxParser.setCustomTagMapping(customTagMapping);
+		saxParser.setRenameTag(renameTag);
+		saxParser.setTypedValues(typedValues);
+		saxParser.setDirectBeans(directBeans);
+		saxParser.setBinarySpoolThreshold(binarySpoolThreshold);
+		saxParser.setTextSpoolThreshold(textSpoolThreshold);
+		// lazy elements need to know where they are in the resource
+		if (lazy && resource != null) {
+			saxParser.setLazy(true);
+			saxParser.setResource(resource);
+			saxParser.setOffsetBase(base);
+			// the offsets are absolute so nested lazy elements can seek with the same table
+			saxParser.setByteOffsets(byteOffsets);
+		}
+		if (nameTable != null) {
+			saxParser.setNameTable(nameTable);
+		}
+		if (customTagIndex != null) {
+			saxParser.setCustomTagIndex(customTagIndex);
+		}
+		return saxParser;
+	}
+	
+	/**
+	 * An open parse that stops after every batch and can pick up where it left off
+	 */
+	private class Cursor {
+		
+		private Reader reader;
+		private XMLStreamReader2 streamReader;
+		private XMLParserStAX staxParser;
+		/**
+		 * The character offset in the document where the reader starts
+		 */
+		private long base;
+		
+		/**
+		 * The offset of the item the reader is positioned on, -1 if it is not positioned on an item
+		 */
+		private long nextOffset = -1;
+		
+		/**
+		 * The name of the items in the list
+		 */
+		private String name;
+		
+		public Cursor(Reader reader, long base) throws IOException {
+			this.reader = reader;
+			this.base = base;
+			try {
+				this.streamReader = (XMLStreamReader2) newStreamReader(reader);
+			}
+			catch (XMLStreamException e) {
+				reader.close();
+				throw new IOException(e);
+			}
+			this.staxParser = new XMLParserStAX(newParser(base));
+		}
+		
+		/**
+		 * Returns null if the next item does not start at the requested offset, the cursor is useless at that point
+		 */
+		public List<ComplexContent> next(long offset, int batchSize) throws IOException {
+			return nextOffset >= 0 && nextOffset == offset ? read(batchSize, true) : null;
+		}
+		
+		/**
+		 * Moves the reader from the end tag of the last item to the start of the next one, returns false if the list has ended
+		 */
+		private boolean advance() throws XMLStreamException {
+			nextOffset = -1;
+			while (streamReader.hasNext()) {
+				int eventType = streamReader.next();
+				if (eventType == XMLEvent.START_ELEMENT) {
+					if (!streamReader.getLocalName().equals(name)) {
+						return false;
+					}
+					nextOffset = base + streamReader.getLocationInfo().getStartingCharOffset();
+					return true;
+				}
+				else if (eventType == XMLEvent.END_ELEMENT || eventType == XMLEvent.END_DOCUMENT) {
+					return false;
+				}
+			}
+			return false;
+		}
+		
+		public List<ComplexContent> read(int batchSize, boolean fromCurrent) throws IOException {
+			List<ComplexContent> results = new ArrayList<ComplexContent>();
+			try {
+				for (int i = 0; i < batchSize; i++) {
+					if (i == 0 && fromCurrent) {
+						staxParser.parseCurrent(streamReader);
+					}
+					else {
+						staxParser.parse(streamReader);
+					}
+					results.add(staxParser.getInstance());
+				}
+			}
+			catch (XMLStreamException e) {
+				PartialXMLUnmarshaller.this.close();
+				throw new IOException(e);
+			}
+			catch (SAXException e) {
+				PartialXMLUnmarshaller.this.close();
+				throw new MarshalException(e);
+			}
+			// the reader is on the end tag of the last item, if no item follows we release the stream right away
+			boolean hasNext;
+			try {
+				name = streamReader.getLocalName();
+				hasNext = advance();
+			}
+			catch (XMLStreamException e) {
+				hasNext = false;
+			}
+			if (!hasNext) {
+				PartialXMLUnmarshaller.this.close();
+			}
+			return results;
+		}
+		
+		public void close() throws IOException {
+			try {
+				streamReader.closeCompletely();
+			}
+			catch (XMLStreamException e) {
+				// ignore, we close the reader ourselves
+			}
+			finally {
+				reader.close();
+			}
+		}
+	}
 
 	public boolean isCamelCaseDashes() {
 		return camelCaseDashes;
@@ -133,5 +419,124 @@ public class PartialXMLUnmarshaller implements PartialUnmarshaller {
 	public void setIgnoreUndefined(boolean ignoreUndefined) {
 		this.ignoreUndefined = ignoreUndefined;
 	}
+
+	public boolean isAllowSuperTypes() {
+		return allowSuperTypes;
+	}
+
+	public void setAllowSuperTypes(boolean allowSuperTypes) {
+		this.allowSuperTypes = allowSuperTypes;
+	}
+
+	public boolean isUnwrapBeans() {
+		return unwrapBeans;
+	}
+
+	public void setUnwrapBeans(boolean unwrapBeans) {
+		this.unwrapBeans = unwrapBeans;
+	}
+
+	public int getTextSpoolThreshold() {
+		return textSpoolThreshold;
+	}
+
+	public void setTextSpoolThreshold(int textSpoolThreshold) {
+		this.textSpoolThreshold = textSpoolThreshold;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public long getBinarySpoolThreshold() {
+		return binarySpoolThreshold;
+	}
+
+	public void setBinarySpoolThreshold(long binarySpoolThreshold) {
+		this.binarySpoolThreshold = binarySpoolThreshold;
+	}
+
+	public boolean isDirectBeans() {
+		return directBeans;
+	}
+
+	public void setDirectBeans(boolean directBeans) {
+		this.directBeans = directBeans;
+	}
+
+	public boolean isTypedValues() {
+		return typedValues;
+	}
+
+	public void setTypedValues(boolean typedValues) {
+		this.typedValues = typedValues;
+	}
+
+	public Map<String, String> getCustomTagMapping() {
+		return customTagMapping;
+	}
+
+	public void setCustomTagMapping(Map<String, String> customTagMapping) {
+		this.customTagMapping = customTagMapping;
+	}
+
+	public Map<String, String> getRenameTag() {
+		return renameTag;
+	}
+
+	public void setRenameTag(Map<String, String> renameTag) {
+		this.renameTag = renameTag;
+	}
+
+	public ReadableResource getResource() {
+		return resource;
+	}
+
+	public void setResource(ReadableResource resource) {
+		this.resource = resource;
+	}
+
+	public boolean isSequential() {
+		return sequential;
+	}
+
+	/**
+	 * Whether a stream is currently kept open
+	 */
+	synchronized boolean isCursorOpen() {
+		return cursor != null;
+	}
+
+	public void setSequential(boolean sequential) {
+		this.sequential = sequential;
+	}
+
+	public NameTable getNameTable() {
+		return nameTable;
+	}
+
+	public void setNameTable(NameTable nameTable) {
+		this.nameTable = nameTable;
+	}
+
+	public CustomTagIndex getCustomTagIndex() {
+		return customTagIndex;
+	}
+
+	public void setCustomTagIndex(CustomTagIndex customTagIndex) {
+		this.customTagIndex = customTagIndex;
+	}
+
+	public ByteOffsetTable getByteOffsets() {
+		return byteOffsets;
+	}
+
+	public void setByteOffsets(ByteOffsetTable byteOffsets) {
+		this.byteOffsets = byteOffsets;
+	}
 	
 }
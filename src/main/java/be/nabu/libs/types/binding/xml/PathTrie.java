@@ -0,0 +1,116 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+
+import be.nabu.libs.types.binding.api.Window;
+
+/**
+ * The window and record paths (or the projected paths) compiled into a tree of path segments
+ * The parser keeps the node for the current path on a stack so it never has to build the path as a string
+ */
+class PathTrie {
+	
+	private Node root = new Node();
+	private int selectedCount;
+	
+	public PathTrie(Window [] windows, String recordPath) {
+		if (windows != null) {
+			for (Window window : windows) {
+				Node node = add(window.getPath());
+				// the first window for a path wins
+				if (node.window == null) {
+					node.window = window;
+				}
+			}
+		}
+		if (recordPath != null) {
+			add(recordPath).record = true;
+		}
+	}
+	
+	/**
+	 * Every element that matches one of the paths is selected along with everything beneath it
+	 */
+	public PathTrie(Collection<String> selectedPaths) {
+		for (String path : selectedPaths) {
+			Node node = add(path);
+			if (!node.selected) {
+				node.selected = true;
+				selectedCount++;
+			}
+		}
+	}
+	
+	private Node add(String path) {
+		Node node = root;
+		for (String segment : path.split("/")) {
+			if (!segment.isEmpty()) {
+				Node child = node.children.get(segment);
+				if (child == null) {
+					child = new Node();
+					node.children.put(segment, child);
+				}
+				node = child;
+			}
+		}
+		return node;
+	}
+	
+	public Node getRoot() {
+		return root;
+	}
+	
+	/**
+	 * The amount of distinct selected paths
+	 */
+	public int getSelectedCount() {
+		return selectedCount;
+	}
+	
+	static class Node {
+		/**
+		 * A node without any children
+		 */
+		static final Node NONE = new Node();
+		
+		private Map<String, Node> children = new HashMap<String, Node>();
+		private Window window;
+		private boolean record, selected;
+		
+		/**
+		 * Returns null if no path continues through this segment
+		 */
+		public Node getChild(String name) {
+			return children.isEmpty() ? null : children.get(name);
+		}
+		public Window getWindow() {
+			return window;
+		}
+		public boolean isRecord() {
+			return record;
+		}
+		public boolean isSelected() {
+			return selected;
+		}
+	}
+}
@@ -0,0 +1,144 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.parsers.SAXParser;
+import javax.xml.parsers.SAXParserFactory;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/**
+ * Creating and configuring a sax parser can cost more than parsing a small document so we pool them
+ * Parsers are only returned to the pool if they finished parsing without issues, a parser that failed midway is simply discarded
+ */
+public class SAXParserPool {
+
+	private static volatile SAXParserPool instance;
+	
+	public static SAXParserPool getInstance() {
+		if (instance == null) {
+			synchronized(SAXParserPool.class) {
+				if (instance == null) {
+					instance = new SAXParserPool(Runtime.getRuntime().availableProcessors() * 2);
+				}
+			}
+		}
+		return instance;
+	}
+	
+	/**
+	 * Used to release the references to the last handler
+	 */
+	private static final DefaultHandler EMPTY_HANDLER = new DefaultHandler();
+	
+	private SAXParserFactory factory;
+	private BlockingQueue<SAXParser> parsers;
+	private int maxSize;
+	private AtomicLong hits = new AtomicLong(), misses = new AtomicLong();
+	
+	public SAXParserPool(int maxSize) {
+		this.maxSize = maxSize;
+		this.parsers = new ArrayBlockingQueue<SAXParser>(maxSize);
+		this.factory = SAXParserFactory.newInstance();
+		factory.setNamespaceAware(true);
+		factory.setValidating(false);
+	}
+	
+	public SAXParser acquire() throws ParserConfigurationException, SAXException {
+		SAXParser parser = parsers.poll();
+		if (parser != null) {
+			hits.incrementAndGet();
+			return parser;
+		}
+		misses.incrementAndGet();
+		return newParser();
+	}
+	
+	public void release(SAXParser parser) {
+		try {
+			XMLReader xmlReader = parser.getXMLReader();
+			xmlReader.setContentHandler(EMPTY_HANDLER);
+			xmlReader.setDTDHandler(EMPTY_HANDLER);
+			xmlReader.setEntityResolver(EMPTY_HANDLER);
+			xmlReader.setErrorHandler(EMPTY_HANDLER);
+			// if the pool is full, the parser is simply dropped
+			parsers.offer(parser);
+		}
+		catch (SAXException e) {
+			// can't reset it, don't reuse it
+		}
+	}
+	
+	private SAXParser newParser() throws ParserConfigurationException, SAXException {
+		SAXParser parser;
+		// the factory itself is not guaranteed to be thread safe
+		synchronized(factory) {
+			parser = factory.newSAXParser();
+		}
+		
+		// if you disable it like this and there is actually a dtd with a remote reference
+		// it will _not_ ignore the dtd but instead fail because it is not allowed to access the necessary files...
+//		parser.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "false");
+//		parser.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "false");
+//		parser.setProperty(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "false");
+		
+		XMLReader xmlReader = parser.getXMLReader();
+		
+		// disable everything with dtd and loading external files for it...
+		// note that these are set on the reader, not the parser so they survive between parses (we never call reset())
+		xmlReader.setFeature("http://xml.org/sax/features/validation", false);
+		xmlReader.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
+		xmlReader.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
+		xmlReader.setFeature("http://xml.org/sax/features/external-general-entities", false);
+		xmlReader.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
+		xmlReader.setFeature("http://xml.org/sax/features/use-entity-resolver2", false);   
+		xmlReader.setFeature("http://xml.org/sax/features/resolve-dtd-uris", false);
+		xmlReader.setFeature("http://apache.org/xml/features/validation/dynamic", false);
+		xmlReader.setFeature("http://apache.org/xml/features/validation/schema/augment-psvi", false);
+		// this one fails, so leaving it out
+//		reader2.setFeature("http://apache.org/xml/features/validation/unparsed-entity-checking", false);
+		return parser;
+	}
+
+	/**
+	 * The amount of parsers currently waiting in the pool
+	 */
+	public int getSize() {
+		return parsers.size();
+	}
+	
+	public int getMaxSize() {
+		return maxSize;
+	}
+	
+	public long getHits() {
+		return hits.get();
+	}
+	
+	public long getMisses() {
+		return misses.get();
+	}
+}
@@ -0,0 +1,126 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.FilterReader;
+import java.io.IOException;
+import java.io.Reader;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Comparator;
+import java.util.List;
+
+/**
+ * A reader that leaves out a number of character ranges of the original reader
+ * Ranges that overlap or are contained in another range are merged
+ */
+class SkippingReader extends FilterReader {
+
+	private List<long[]> ranges = new ArrayList<long[]>();
+	private int rangeIndex;
+	/**
+	 * The position in the original reader
+	 */
+	private long position;
+	private boolean sorted;
+	
+	public SkippingReader(Reader in) {
+		super(in);
+	}
+	
+	/**
+	 * Leave out everything from start (inclusive) to end (exclusive), all ranges must be added before reading
+	 */
+	public void skip(long start, long end) {
+		if (end > start) {
+			ranges.add(new long[] { start, end });
+		}
+	}
+	
+	private void sort() {
+		Collections.sort(ranges, new Comparator<long[]>() {
+			@Override
+			public int compare(long[] o1, long[] o2) {
+				return Long.compare(o1[0], o2[0]);
+			}
+		});
+		List<long[]> merged = new ArrayList<long[]>();
+		for (long[] range : ranges) {
+			if (!merged.isEmpty() && range[0] <= merged.get(merged.size() - 1)[1]) {
+				merged.get(merged.size() - 1)[1] = Math.max(range[1], merged.get(merged.size() - 1)[1]);
+			}
+			else {
+				merged.add(range);
+			}
+		}
+		ranges = merged;
+	}
+	
+	private void skipIfNecessary() throws IOException {
+		if (!sorted) {
+			sort();
+			sorted = true;
+		}
+		while (rangeIndex < ranges.size() && position >= ranges.get(rangeIndex)[0]) {
+			long toSkip = ranges.get(rangeIndex)[1] - position;
+			while (toSkip > 0) {
+				long skipped = in.skip(toSkip);
+				if (skipped <= 0) {
+					if (in.read() < 0) {
+						return;
+					}
+					skipped = 1;
+				}
+				toSkip -= skipped;
+				position += skipped;
+			}
+			rangeIndex++;
+		}
+	}
+
+	@Override
+	public int read() throws IOException {
+		char [] single = new char[1];
+		int read = read(single, 0, 1);
+		return read <= 0 ? -1 : single[0];
+	}
+
+	@Override
+	public int read(char[] cbuf, int off, int len) throws IOException {
+		skipIfNecessary();
+		int max = rangeIndex < ranges.size() ? (int) Math.min(len, ranges.get(rangeIndex)[0] - position) : len;
+		int read = in.read(cbuf, off, max);
+		if (read > 0) {
+			position += read;
+		}
+		return read;
+	}
+
+	@Override
+	public boolean markSupported() {
+		return false;
+	}
+
+	@Override
+	public long skip(long n) throws IOException {
+		char [] skipped = new char[(int) Math.min(n, 8192)];
+		int read = read(skipped, 0, skipped.length);
+		return read < 0 ? 0 : read;
+	}
+}
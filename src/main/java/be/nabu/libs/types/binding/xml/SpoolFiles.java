@@ -0,0 +1,120 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.File;
+import java.lang.ref.PhantomReference;
+import java.lang.ref.ReferenceQueue;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+/**
+ * Spooled files are removed once whatever holds them (the spool, a stream, a mapping...) is no longer reachable
+ * Closing the holder simply removes the file sooner
+ * Some systems refuse to remove a file that is still open or mapped, we keep retrying those
+ */
+final class SpoolFiles {
+
+	private static ReferenceQueue<Object> queue = new ReferenceQueue<Object>();
+	
+	/**
+	 * The references themselves have to be reachable or they are never enqueued
+	 */
+	private static Set<Tracked> tracked = Collections.newSetFromMap(new ConcurrentHashMap<Tracked, Boolean>());
+	
+	private static Thread cleaner;
+	
+	private SpoolFiles() {
+		// static only
+	}
+	
+	public static synchronized Tracked track(Object holder, File file) {
+		if (cleaner == null) {
+			cleaner = new Thread(new Runnable() {
+				@Override
+				public void run() {
+					clean();
+				}
+			}, "xml-spool-cleaner");
+			cleaner.setDaemon(true);
+			cleaner.start();
+		}
+		Tracked reference = new Tracked(holder, file);
+		tracked.add(reference);
+		return reference;
+	}
+	
+	private static void clean() {
+		List<File> retry = new ArrayList<File>();
+		while (true) {
+			try {
+				Tracked reference = (Tracked) queue.remove(retry.isEmpty() ? 0 : 1000);
+				if (reference != null && tracked.remove(reference) && !reference.file.delete() && reference.file.exists()) {
+					retry.add(reference.file);
+				}
+				Iterator<File> iterator = retry.iterator();
+				while (iterator.hasNext()) {
+					File file = iterator.next();
+					if (file.delete() || !file.exists()) {
+						iterator.remove();
+					}
+				}
+			}
+			catch (InterruptedException e) {
+				// keep cleaning
+			}
+		}
+	}
+	
+	static final class Tracked extends PhantomReference<Object> {
+		
+		private final File file;
+		
+		private Tracked(Object holder, File file) {
+			super(holder, queue);
+			this.file = file;
+		}
+		
+		/**
+		 * Stops tracking the file without removing it, e.g. to hand it off to a new holder
+		 */
+		public File release() {
+			tracked.remove(this);
+			clear();
+			return file;
+		}
+		
+		/**
+		 * Removes the file right away, if that fails it is retried once the holder is no longer reachable
+		 */
+		public void delete() {
+			if (file.delete() || !file.exists()) {
+				release();
+			}
+		}
+		
+		public File getFile() {
+			return file;
+		}
+	}
+}
@@ -0,0 +1,114 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import javax.xml.stream.XMLStreamReader;
+
+import org.xml.sax.Attributes;
+
+/**
+ * A view on the attributes of the current start element of a stream reader
+ * It is reused for every element so it is only valid during the startElement() call
+ */
+class StAXAttributes implements Attributes {
+
+	private XMLStreamReader reader;
+	
+	public void setReader(XMLStreamReader reader) {
+		this.reader = reader;
+	}
+	
+	@Override
+	public int getLength() {
+		return reader.getAttributeCount();
+	}
+
+	@Override
+	public String getURI(int index) {
+		String namespace = reader.getAttributeNamespace(index);
+		// sax uses the empty string for no namespace
+		return namespace == null ? "" : namespace;
+	}
+
+	@Override
+	public String getLocalName(int index) {
+		return reader.getAttributeLocalName(index);
+	}
+
+	@Override
+	public String getQName(int index) {
+		String prefix = reader.getAttributePrefix(index);
+		return prefix == null || prefix.isEmpty() ? reader.getAttributeLocalName(index) : prefix + ":" + reader.getAttributeLocalName(index);
+	}
+
+	@Override
+	public String getType(int index) {
+		return reader.getAttributeType(index);
+	}
+
+	@Override
+	public String getValue(int index) {
+		return reader.getAttributeValue(index);
+	}
+
+	@Override
+	public int getIndex(String uri, String localName) {
+		for (int i = 0; i < getLength(); i++) {
+			if (getURI(i).equals(uri == null ? "" : uri) && getLocalName(i).equals(localName)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public int getIndex(String qName) {
+		for (int i = 0; i < getLength(); i++) {
+			if (getQName(i).equals(qName)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	@Override
+	public String getType(String uri, String localName) {
+		int index = getIndex(uri, localName);
+		return index < 0 ? null : getType(index);
+	}
+
+	@Override
+	public String getType(String qName) {
+		int index = getIndex(qName);
+		return index < 0 ? null : getType(index);
+	}
+
+	@Override
+	public String getValue(String uri, String localName) {
+		int index = getIndex(uri, localName);
+		return index < 0 ? null : getValue(index);
+	}
+
+	@Override
+	public String getValue(String qName) {
+		int index = getIndex(qName);
+		return index < 0 ? null : getValue(index);
+	}
+
+}
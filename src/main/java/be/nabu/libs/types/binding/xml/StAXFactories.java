@@ -0,0 +1,85 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.ByteArrayInputStream;
+import java.io.IOException;
+
+import javax.xml.stream.XMLInputFactory;
+import javax.xml.stream.XMLResolver;
+import javax.xml.stream.XMLStreamException;
+
+import com.ctc.wstx.api.WstxInputProperties;
+
+/**
+ * Input factories are expensive to create but thread safe once configured, so we share them
+ * Note that the factories must not be reconfigured after they are created
+ */
+public class StAXFactories {
+
+	private static volatile XMLInputFactory documentFactory, fragmentFactory;
+	
+	/**
+	 * The factory used to parse entire documents
+	 */
+	public static XMLInputFactory getDocumentFactory() {
+		if (documentFactory == null) {
+			synchronized(StAXFactories.class) {
+				if (documentFactory == null) {
+					XMLInputFactory factory = XMLInputFactory.newFactory();
+					// simply don't return anything seems to work for stax, so let's leave it at that for now
+					factory.setXMLResolver(new XMLResolver() {
+						@Override
+						public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace) throws XMLStreamException {
+							return new ByteArrayInputStream(new byte[0]);
+						}
+					});
+//					factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
+//					factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "false");
+//					factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "false");
+//					factory.setProperty(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "false");
+					documentFactory = factory;
+				}
+			}
+		}
+		return documentFactory;
+	}
+	
+	/**
+	 * The factory used to parse a fragment of a document starting at an arbitrary element (e.g. for windowed lists)
+	 */
+	public static XMLInputFactory getFragmentFactory() throws IOException {
+		if (fragmentFactory == null) {
+			synchronized(StAXFactories.class) {
+				if (fragmentFactory == null) {
+					XMLInputFactory factory = XMLInputFactory.newFactory();
+					if (factory instanceof com.ctc.wstx.stax.WstxInputFactory) {
+//						factory.setProperty(WstxInputProperties.P_INPUT_PARSING_MODE, WstxInputProperties.PARSING_MODE_DOCUMENTS);
+						factory.setProperty(WstxInputProperties.P_INPUT_PARSING_MODE, WstxInputProperties.PARSING_MODE_FRAGMENT);
+					}
+					else {
+						throw new IOException("You are requesting windowed mode, this is currently only supported with woodstox");
+					}
+					fragmentFactory = factory;
+				}
+			}
+		}
+		return fragmentFactory;
+	}
+}
@@ -0,0 +1,209 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.Closeable;
+import java.io.EOFException;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.io.Reader;
+import java.nio.ByteBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+
+/**
+ * Keeps very large text content in a temporary file instead of on the heap
+ * The characters are stored as fixed width utf-16 so the file can be mapped directly as a character sequence
+ */
+public class TextSpool implements Closeable {
+
+	private SpoolFiles.Tracked file;
+	private FileChannel channel;
+	private ByteBuffer buffer = ByteBuffer.allocate(16384);
+	private long length;
+	
+	/**
+	 * The first and last character that is not whitespace, this allows us to trim without reading the file again
+	 */
+	private long first = -1, last = -1;
+	
+	public TextSpool() throws IOException {
+		file = SpoolFiles.track(this, File.createTempFile("xml-text", ".spool"));
+		channel = new FileOutputStream(file.getFile()).getChannel();
+	}
+	
+	public void write(char [] ch, int start, int length) throws IOException {
+		for (int i = start; i < start + length; i++) {
+			if (ch[i] > ' ') {
+				if (first < 0) {
+					first = this.length;
+				}
+				last = this.length;
+			}
+			if (buffer.remaining() < 2) {
+				flush();
+			}
+			buffer.putChar(ch[i]);
+			this.length++;
+		}
+	}
+	
+	private void flush() throws IOException {
+		buffer.flip();
+		while (buffer.hasRemaining()) {
+			channel.write(buffer);
+		}
+		buffer.clear();
+	}
+	
+	private void finish() throws IOException {
+		if (channel != null) {
+			try {
+				flush();
+			}
+			finally {
+				channel.close();
+				channel = null;
+			}
+		}
+	}
+	
+	private long getStart(boolean trim) {
+		return !trim ? 0 : first < 0 ? length : first;
+	}
+	
+	private long getEnd(boolean trim) {
+		return !trim ? length : first < 0 ? length : last + 1;
+	}
+	
+	/**
+	 * The file is mapped in memory, this is limited to roughly a billion characters
+	 * It is removed once the mapping is no longer reachable, you can not close a mapping
+	 */
+	public CharSequence toCharSequence(boolean trim) throws IOException {
+		finish();
+		long start = getStart(trim);
+		long end = getEnd(trim);
+		if ((end - start) * 2 > Integer.MAX_VALUE) {
+			close();
+			throw new IOException("The text content of " + (end - start) + " characters is too large to be mapped, use a reader instead");
+		}
+		RandomAccessFile input = new RandomAccessFile(file.getFile(), "r");
+		try {
+			MappedByteBuffer mapped = input.getChannel().map(FileChannel.MapMode.READ_ONLY, start * 2, (end - start) * 2);
+			// every view on the mapping refers to this buffer
+			SpoolFiles.track(mapped, file.release());
+			file = null;
+			return mapped.asCharBuffer();
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	/**
+	 * The file is only opened when the reader is first used and removed when it is closed or no longer reachable
+	 */
+	public Reader toReader(boolean trim) throws IOException {
+		finish();
+		Reader reader = new SpoolReader(file.release(), getStart(trim), getEnd(trim) - getStart(trim));
+		file = null;
+		return reader;
+	}
+	
+	@Override
+	public void close() throws IOException {
+		try {
+			if (channel != null) {
+				channel.close();
+				channel = null;
+			}
+		}
+		finally {
+			if (file != null) {
+				file.delete();
+				file = null;
+			}
+		}
+	}
+	
+	private static class SpoolReader extends Reader {
+		
+		private SpoolFiles.Tracked file;
+		private FileChannel channel;
+		private ByteBuffer buffer = ByteBuffer.allocate(16384);
+		private long position, remaining;
+		private boolean closed;
+		
+		private SpoolReader(File file, long position, long remaining) {
+			this.file = SpoolFiles.track(this, file);
+			this.position = position;
+			this.remaining = remaining;
+		}
+
+		@Override
+		public int read(char[] cbuf, int off, int len) throws IOException {
+			if (closed) {
+				throw new IOException("The reader is closed");
+			}
+			else if (remaining == 0) {
+				return -1;
+			}
+			else if (len == 0) {
+				return 0;
+			}
+			if (channel == null) {
+				channel = new FileInputStream(file.getFile()).getChannel();
+			}
+			int amount = (int) Math.min(Math.min(len, remaining), buffer.capacity() / 2);
+			buffer.clear();
+			buffer.limit(amount * 2);
+			while (buffer.hasRemaining()) {
+				if (channel.read(buffer, position * 2 + buffer.position()) < 0) {
+					throw new EOFException("The spooled text is shorter than expected");
+				}
+			}
+			buffer.flip();
+			for (int i = 0; i < amount; i++) {
+				cbuf[off + i] = buffer.getChar();
+			}
+			position += amount;
+			remaining -= amount;
+			return amount;
+		}
+
+		@Override
+		public void close() throws IOException {
+			if (!closed) {
+				closed = true;
+				try {
+					if (channel != null) {
+						channel.close();
+					}
+				}
+				finally {
+					file.delete();
+				}
+			}
+		}
+	}
+}
@@ -17,27 +17,26 @@
 
 package be.nabu.libs.types.binding.xml;
 
-import java.io.ByteArrayInputStream;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.io.Reader;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import javax.xml.parsers.ParserConfigurationException;
 import javax.xml.parsers.SAXParser;
-import javax.xml.parsers.SAXParserFactory;
 import javax.xml.stream.XMLInputFactory;
-import javax.xml.stream.XMLResolver;
 import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 
 import org.xml.sax.InputSource;
 import org.xml.sax.SAXException;
-import org.xml.sax.XMLReader;
 
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.resources.api.ReadableResource;
@@ -47,6 +46,7 @@ import be.nabu.libs.types.api.ComplexType;
 import be.nabu.libs.types.api.MarshalException;
 import be.nabu.libs.types.binding.BaseTypeBinding;
 import be.nabu.libs.types.binding.api.Window;
+import be.nabu.libs.types.binding.api.WindowedList;
 import be.nabu.utils.io.IOUtils;
 import be.nabu.utils.io.api.CharBuffer;
 import be.nabu.utils.io.api.ReadableContainer;
@@ -79,6 +79,70 @@ public class XMLBinding extends BaseTypeBinding {
 	private AttributeFilter attributeFilter;
 	private List<String> sameLineAttributes = new ArrayList<>();
 	private Map<String, String> renameTag;
+	private SAXParserPool saxParserPool;
+	/**
+	 * When set, the raw bytes are passed to the parser instead of decoding them ourselves
+	 * This is (a lot) faster for large documents but only applies to the non-windowed parsing as windows need character offsets
+	 */
+	private boolean byteStreamInput;
+	/**
+	 * If set, the offsets of windowed lists are persisted so reopening the same resource does not require parsing all the items again
+	 */
+	private OffsetIndexStore offsetIndexStore;
+	/**
+	 * When set, we always parse with stax so ints, longs, floats, doubles, booleans and base64 content can be read with the stax2 typed access instead of building strings
+	 * Note that the typed access follows the xml schema lexical rules, for example "1" and "0" are also valid booleans
+	 */
+	private boolean typedValues;
+	/**
+	 * Bean types are instantiated and populated through method handles instead of reflection where possible
+	 * Only enable this if your beans do not rely on something the bean instance does when setting values
+	 */
+	private boolean directBeans;
+	/**
+	 * Base64 encoded streams that decode to more than this amount of bytes are spooled to a temporary file instead of being kept in memory
+	 * The file is removed when the stream is closed or no longer reachable, by default nothing is spooled
+	 */
+	private long binarySpoolThreshold = Long.MAX_VALUE;
+	/**
+	 * Text content that exceeds this amount of characters is spooled to a temporary file, this only applies to fields that accept a CharSequence or Reader
+	 * Other fields need a string anyway so they keep their content in memory
+	 * The file is removed when the reader is closed or the content is no longer reachable, by default nothing is spooled
+	 */
+	private int textSpoolThreshold = Integer.MAX_VALUE;
+	/**
+	 * Complex children of the root are only parsed when they are first accessed, the same goes for their children and so on
+	 * Only the start offset is kept so the document has to be reread for every element that is accessed, this pays off when you only need a few fields of a large document
+	 * Lists and bean instances are always parsed immediately
+	 */
+	private boolean lazy;
+	/**
+	 * When the batches of a windowed list are read in order, keep the stream open and continue parsing instead of seeking to every batch
+	 * The stream is released when a batch reaches the end of the list, if you stop reading before that, close the PartialXMLUnmarshaller of the windowed list
+	 */
+	private boolean sequentialWindows;
+	/**
+	 * If set, only the elements on these paths (e.g. company/name, company/employees/id) are parsed, everything else is skipped as if it were undefined
+	 * A path that ends in a complex element selects everything beneath it, the root is always parsed
+	 */
+	private Collection<String> projection;
+	/**
+	 * If set, parsing stops as soon as an element has been parsed for each of these paths (e.g. company/header), the rest of the document is not read
+	 */
+	private Collection<String> requiredPaths;
+	/**
+	 * If set, it is checked with the partial result every time an element ends, parsing stops once it returns true
+	 * The list items parsed so far are attached before each check but elements that are still open are only added to the result once we stop
+	 */
+	private Predicate<ComplexContent> stopCondition;
+	/**
+	 * Shared by all the parses so the tag names are only preprocessed once
+	 */
+	private NameTable nameTable;
+	/**
+	 * Shared by all the parses so the custom tags are only resolved once
+	 */
+	private CustomTagIndex customTagIndex;
 	
 	public XMLBinding(ComplexType type, Charset charset) {
 		this.charset = charset;
@@ -87,7 +151,31 @@ public class XMLBinding extends BaseTypeBinding {
 
 	@Override
 	protected ComplexContent unmarshal(ReadableResource resource, Window [] windows, Value<?>...values) throws IOException {
-		// create the sax handler
+		XMLParserSAX saxHandler = newHandler(resource, windows, values);
+		return unmarshal(saxHandler, resource, windows, values);
+	}
+	
+	/**
+	 * Every complex element that matches the record path (e.g. company/employees) is passed to the handler once it is fully parsed and is not retained in the result
+	 * This allows you to process very large files in constant memory
+	 * The returned content contains everything that is not a record (e.g. headers and footers)
+	 */
+	public ComplexContent unmarshal(ReadableResource resource, String recordPath, Consumer<ComplexContent> recordHandler, Value<?>...values) throws IOException {
+		XMLParserSAX saxHandler = newHandler(resource, new Window[0], values);
+		saxHandler.setRecordPath(recordPath);
+		saxHandler.setRecordHandler(recordHandler);
+		return unmarshal(saxHandler, resource, new Window[0], values);
+	}
+	
+	/**
+	 * Parses the document in parallel by splitting it at the elements that match the record path (e.g. company/employees)
+	 * Use the ParallelXMLUnmarshaller directly if you want to tweak the chunk size or the pool
+	 */
+	public ComplexContent unmarshalParallel(ReadableResource resource, String recordPath, Value<?>...values) throws IOException {
+		return new ParallelXMLUnmarshaller(this, recordPath).unmarshal(resource, values);
+	}
+	
+	XMLParserSAX newHandler(ReadableResource resource, Window [] windows, Value<?>...values) {
 		XMLParserSAX saxHandler = new XMLParserSAX(type, windows, values);
 		saxHandler.setCamelCaseDashes(camelCaseDashes);
 		saxHandler.setCamelCaseUnderscores(camelCaseUnderscores);
@@ -101,84 +189,204 @@ public class XMLBinding extends BaseTypeBinding {
 		saxHandler.setAllowRootNull(allowRootNull);
 		saxHandler.setCustomTagMapping(customTagMapping);
 		saxHandler.setRenameTag(renameTag);
-		return unmarshal(saxHandler, resource, windows, values);
+		saxHandler.setTypedValues(typedValues);
+		saxHandler.setDirectBeans(directBeans);
+		saxHandler.setBinarySpoolThreshold(binarySpoolThreshold);
+		saxHandler.setTextSpoolThreshold(textSpoolThreshold);
+		saxHandler.setLazy(lazy);
+		saxHandler.setSequentialWindows(sequentialWindows);
+		saxHandler.setProjection(projection);
+		saxHandler.setRequiredPaths(requiredPaths);
+		saxHandler.setStopCondition(stopCondition);
+		saxHandler.setNameTable(getNameTable());
+		saxHandler.setCustomTagIndex(getCustomTagIndex());
+		return saxHandler;
 	}
 
 	public ComplexContent unmarshal(XMLParserSAX saxHandler, ReadableResource resource, Window[] windows, Value<?>...values) throws IOException {
-		// create the reader
-		ReadableContainer<CharBuffer> readable = IOUtils.wrapReadable(resource.getReadable(), charset);
-		Reader reader = IOUtils.toReader(readable);
-
+		boolean completed = false;
+		try {
+			ComplexContent result = parse(saxHandler, resource, windows);
+			completed = true;
+			return result;
+		}
+		finally {
+			// nobody gets to close what we spooled for a failed parse
+			if (!completed) {
+				saxHandler.discardSpools();
+			}
+		}
+	}
+	
+	private ComplexContent parse(XMLParserSAX saxHandler, ReadableResource resource, Window[] windows) throws IOException {
+		// typed values require the stax2 api, lazy parsing needs the offsets
+		if (windows.length == 0 && (typedValues || lazy)) {
+			// the lazy elements seek to their start using the byte offsets we track while parsing
+			OffsetTrackingReader reader = getTrackingReader(resource);
+			saxHandler.setByteOffsets(reader.getTable());
+			try {
+				return parseStAX(saxHandler, reader);
+			}
+			finally {
+				reader.close();
+			}
+		}
 		// without windows, use the sax parser, it is up to 10x faster than the stax parser
-		if (windows.length == 0) {
-			SAXParserFactory factory = SAXParserFactory.newInstance();
-			factory.setNamespaceAware(true);
-			factory.setValidating(false);
+		else if (windows.length == 0) {
+			SAXParserPool pool = getSaxParserPool();
 			try {
-				SAXParser parser = factory.newSAXParser();
-				
-				// if you disable it like this and there is actually a dtd with a remote reference
-				// it will _not_ ignore the dtd but instead fail because it is not allowed to access the necessary files...
-//				parser.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "false");
-//				parser.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "false");
-//				parser.setProperty(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "false");
-				
-				XMLReader xmlReader = parser.getXMLReader();
-				
-				// disable everything with dtd and loading external files for it...
-				xmlReader.setFeature("http://xml.org/sax/features/validation", false);
-				xmlReader.setFeature("http://apache.org/xml/features/nonvalidating/load-dtd-grammar", false);
-				xmlReader.setFeature("http://apache.org/xml/features/nonvalidating/load-external-dtd", false);
-				xmlReader.setFeature("http://xml.org/sax/features/external-general-entities", false);
-				xmlReader.setFeature("http://xml.org/sax/features/external-parameter-entities", false);
-				xmlReader.setFeature("http://xml.org/sax/features/use-entity-resolver2", false);   
-				xmlReader.setFeature("http://xml.org/sax/features/resolve-dtd-uris", false);
-				xmlReader.setFeature("http://apache.org/xml/features/validation/dynamic", false);
-				xmlReader.setFeature("http://apache.org/xml/features/validation/schema/augment-psvi", false);
-				// this one fails, so leaving it out
-//				reader2.setFeature("http://apache.org/xml/features/validation/unparsed-entity-checking", false);
-				
-				parser.parse(new InputSource(reader), saxHandler);
+				SAXParser parser = pool.acquire();
+				parser.parse(getInputSource(resource), saxHandler);
+				// only put it back if it was successful, we don't know what state a failed parser is in
+				pool.release(parser);
 				return saxHandler.getInstance();
 			}
 			catch (ParserConfigurationException e) {
 				throw new MarshalException("Could not parse: " + resource, e);
 			}
 			catch (SAXException e) {
+				// we stopped early on purpose, we don't reuse the parser because it did not finish
+				if (saxHandler.isStopped()) {
+					return saxHandler.getInstance();
+				}
 				throw new MarshalException("Could not parse: " + resource, e);
 			}			
 		}
 		// when using windows, we need the stax parser for the character offsets
 		else {
-			XMLInputFactory factory = XMLInputFactory.newFactory();
-			// simply don't return anything seems to work for stax, so let's leave it at that for now
-			factory.setXMLResolver(new XMLResolver() {
-				@Override
-				public Object resolveEntity(String publicID, String systemID, String baseURI, String namespace) throws XMLStreamException {
-					return new ByteArrayInputStream(new byte[0]);
+			OffsetIndex index = offsetIndexStore == null ? null : offsetIndexStore.load(resource, windows);
+			boolean skippable = true;
+			if (index != null && index.isSkippable()) {
+				ComplexContent result = unmarshalIndexed(saxHandler, resource, windows, index);
+				if (result != null) {
+					return result;
 				}
-			});
-//			factory.setProperty(XMLInputFactory.SUPPORT_DTD, false);
-//			factory.setProperty(XMLConstants.ACCESS_EXTERNAL_DTD, "false");
-//			factory.setProperty(XMLConstants.ACCESS_EXTERNAL_SCHEMA, "false");
-//			factory.setProperty(XMLConstants.ACCESS_EXTERNAL_STYLESHEET, "false");
+				// the resource has not changed so the next attempt would not match either
+				skippable = false;
+			}
+			// if we already know the index can not be used, there is no point in building it again
+			boolean indexing = offsetIndexStore != null && (index == null || index.isSkippable());
+			if (indexing) {
+				saxHandler.setOffsetIndex(new OffsetIndex());
+			}
+			// the offsets must be in characters (as decoded by us) so we always need a reader here
+			OffsetTrackingReader reader = getTrackingReader(resource);
 			try {
-				// set up the stax parser
-				XMLParserStAX xmlParser = new XMLParserStAX(saxHandler);
-				// do the actual parsing
-				XMLStreamReader parser = factory.createXMLStreamReader(reader);
-				xmlParser.parse(parser);
-				return xmlParser.getInstance();
+				saxHandler.setByteOffsets(reader.getTable());
+				ComplexContent result = parseStAX(saxHandler, reader);
+				// if we stopped early the index is incomplete
+				if (indexing && !saxHandler.isStopped()) {
+					saxHandler.getOffsetIndex().setByteOffsets(reader.getTable());
+					saxHandler.getOffsetIndex().setSkippable(skippable);
+					offsetIndexStore.store(resource, windows, saxHandler.getOffsetIndex());
+				}
+				return result;
 			}
-			catch (XMLStreamException e) {
-				throw new IOException(e);
+			finally {
+				reader.close();
+				saxHandler.setOffsetIndex(null);
 			}
-			catch (SAXException e) {
-				throw new MarshalException(e);
+		}
+	}
+	
+	/**
+	 * We leave out all the windowed items we don't need right away and set their offsets from the index
+	 * If the parse does not match the index (e.g. nested windows) we return null so a full parse can be done
+	 */
+	private ComplexContent unmarshalIndexed(XMLParserSAX saxHandler, ReadableResource resource, Window[] windows, OffsetIndex index) throws IOException {
+		for (OffsetIndex.ListIndex list : index.getLists()) {
+			if (getWindow(windows, list.getPath()) == null) {
+				return null;
 			}
 		}
+		OffsetTrackingReader trackingReader = getTrackingReader(resource);
+		SkippingReader reader = new SkippingReader(trackingReader);
+		for (OffsetIndex.ListIndex list : index.getLists()) {
+			// only the items themselves are skipped, there may be other elements in between
+			for (int i = getWindow(windows, list.getPath()).getSize(); i < list.getSize(); i++) {
+				reader.skip(list.getOffset(i), list.getEnd(i));
+			}
+		}
+		saxHandler.setLoadedIndex(index);
+		saxHandler.setByteOffsets(index.getByteOffsets() != null ? index.getByteOffsets() : trackingReader.getTable());
+		try {
+			ComplexContent result = parseStAX(saxHandler, reader);
+			List<WindowedList> windowedLists = saxHandler.getWindowedLists();
+			if (windowedLists.size() != index.getLists().size()) {
+				// the result is discarded, so is anything we spooled for it
+				saxHandler.discardSpools();
+				return null;
+			}
+			for (int i = 0; i < windowedLists.size(); i++) {
+				OffsetIndex.ListIndex list = index.getLists().get(i);
+				if (!list.getPath().equals(saxHandler.getWindowedListPaths().get(i))) {
+					saxHandler.discardSpools();
+					return null;
+				}
+				// the offsets registered during the parse are off once we skipped something, so we overwrite all of them
+				for (int j = 0; j < list.getSize(); j++) {
+					windowedLists.get(i).setOffset(j, list.getOffset(j));
+				}
+			}
+			return result;
+		}
+		finally {
+			reader.close();
+			saxHandler.setLoadedIndex(null);
+		}
+	}
+	
+	private static Window getWindow(Window [] windows, String path) {
+		for (Window window : windows) {
+			if (window.getPath().equals(path)) {
+				return window;
+			}
+		}
+		return null;
+	}
+	
+	private ComplexContent parseStAX(XMLParserSAX saxHandler, Reader reader) throws IOException {
+		XMLInputFactory factory = StAXFactories.getDocumentFactory();
+		try {
+			// set up the stax parser
+			XMLParserStAX xmlParser = new XMLParserStAX(saxHandler);
+			// do the actual parsing
+			XMLStreamReader parser = factory.createXMLStreamReader(reader);
+			xmlParser.parse(parser);
+			return xmlParser.getInstance();
+		}
+		catch (XMLStreamException e) {
+			throw new IOException(e);
+		}
+		catch (SAXException e) {
+			throw new MarshalException(e);
+		}
 	}
 
+	/**
+	 * The windowed lists use the byte offsets tracked by this reader to seek
+	 */
+	private OffsetTrackingReader getTrackingReader(ReadableResource resource) throws IOException {
+		return new OffsetTrackingReader(IOUtils.toInputStream(resource.getReadable(), true), charset);
+	}
+	
+	Reader getReader(ReadableResource resource) throws IOException {
+		ReadableContainer<CharBuffer> readable = IOUtils.wrapReadable(resource.getReadable(), charset);
+		return IOUtils.toReader(readable);
+	}
+	
+	private InputSource getInputSource(ReadableResource resource) throws IOException {
+		if (byteStreamInput) {
+			// let the parser do the decoding with its own (much faster) byte scanners, the charset we were given still takes precedence over the xml declaration
+			InputSource source = new InputSource(IOUtils.toInputStream(resource.getReadable(), true));
+			source.setEncoding(charset.name());
+			return source;
+		}
+		else {
+			return new InputSource(getReader(resource));
+		}
+	}
+	
 	@Override
 	public void marshal(OutputStream output, ComplexContent content, Value<?>... values) throws IOException {
 		XMLMarshaller xmlMarshaller = new XMLMarshaller(new BaseTypeInstance(type, values));
@@ -206,6 +414,7 @@ public class XMLBinding extends BaseTypeBinding {
 
 	public void setCamelCaseDashes(boolean camelCaseDashes) {
 		this.camelCaseDashes = camelCaseDashes;
+		this.nameTable = null;
 	}
 
 	public boolean isCamelCaseUnderscores() {
@@ -214,6 +423,7 @@ public class XMLBinding extends BaseTypeBinding {
 
 	public void setCamelCaseUnderscores(boolean camelCaseUnderscores) {
 		this.camelCaseUnderscores = camelCaseUnderscores;
+		this.nameTable = null;
 	}
 
 	public boolean isIgnoreUndefined() {
@@ -302,6 +512,7 @@ public class XMLBinding extends BaseTypeBinding {
 
 	public void setCustomTagMapping(Map<String, String> customTagMapping) {
 		this.customTagMapping = customTagMapping;
+		this.customTagIndex = null;
 	}
 
 	public AttributeFilter getAttributeFilter() {
@@ -326,5 +537,120 @@ public class XMLBinding extends BaseTypeBinding {
 
 	public void setRenameTag(Map<String, String> renameTag) {
 		this.renameTag = renameTag;
+		this.nameTable = null;
+	}
+
+	public SAXParserPool getSaxParserPool() {
+		return saxParserPool == null ? SAXParserPool.getInstance() : saxParserPool;
+	}
+
+	public void setSaxParserPool(SAXParserPool saxParserPool) {
+		this.saxParserPool = saxParserPool;
+	}
+
+	public boolean isByteStreamInput() {
+		return byteStreamInput;
+	}
+
+	public void setByteStreamInput(boolean byteStreamInput) {
+		this.byteStreamInput = byteStreamInput;
+	}
+
+	CustomTagIndex getCustomTagIndex() {
+		if (customTagMapping == null || customTagMapping.isEmpty()) {
+			return null;
+		}
+		// the mapping is exposed and can be modified, in which case we rebuild
+		else if (customTagIndex == null || !customTagIndex.isFor(customTagMapping)) {
+			customTagIndex = new CustomTagIndex(customTagMapping);
+		}
+		return customTagIndex;
+	}
+
+	NameTable getNameTable() {
+		if (nameTable == null) {
+			nameTable = new NameTable(camelCaseDashes, camelCaseUnderscores, renameTag);
+		}
+		return nameTable;
+	}
+
+	public Collection<String> getRequiredPaths() {
+		return requiredPaths;
+	}
+
+	public void setRequiredPaths(Collection<String> requiredPaths) {
+		this.requiredPaths = requiredPaths;
+	}
+
+	public Predicate<ComplexContent> getStopCondition() {
+		return stopCondition;
+	}
+
+	public void setStopCondition(Predicate<ComplexContent> stopCondition) {
+		this.stopCondition = stopCondition;
+	}
+
+	public Collection<String> getProjection() {
+		return projection;
+	}
+
+	public void setProjection(Collection<String> projection) {
+		this.projection = projection;
+	}
+
+	public boolean isSequentialWindows() {
+		return sequentialWindows;
+	}
+
+	public void setSequentialWindows(boolean sequentialWindows) {
+		this.sequentialWindows = sequentialWindows;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public int getTextSpoolThreshold() {
+		return textSpoolThreshold;
+	}
+
+	public void setTextSpoolThreshold(int textSpoolThreshold) {
+		this.textSpoolThreshold = textSpoolThreshold;
+	}
+
+	public long getBinarySpoolThreshold() {
+		return binarySpoolThreshold;
+	}
+
+	public void setBinarySpoolThreshold(long binarySpoolThreshold) {
+		this.binarySpoolThreshold = binarySpoolThreshold;
+	}
+
+	public boolean isDirectBeans() {
+		return directBeans;
+	}
+
+	public void setDirectBeans(boolean directBeans) {
+		this.directBeans = directBeans;
+	}
+
+	public boolean isTypedValues() {
+		return typedValues;
+	}
+
+	public void setTypedValues(boolean typedValues) {
+		this.typedValues = typedValues;
+	}
+
+	public OffsetIndexStore getOffsetIndexStore() {
+		return offsetIndexStore;
+	}
+
+	public void setOffsetIndexStore(OffsetIndexStore offsetIndexStore) {
+		this.offsetIndexStore = offsetIndexStore;
 	}
 }
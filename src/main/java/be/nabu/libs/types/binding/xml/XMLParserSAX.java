@@ -17,17 +17,25 @@
 
 package be.nabu.libs.types.binding.xml;
 
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
 import java.io.IOException;
-import java.io.InputStream;
-import java.io.StringWriter;
+import java.io.StringReader;
 import java.io.UnsupportedEncodingException;
 import java.nio.charset.Charset;
 import java.util.ArrayList;
+import java.util.Arrays;
 import java.util.Collection;
+import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.List;
 import java.util.Map;
-import java.util.Stack;
+import java.util.Set;
+import java.util.WeakHashMap;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
 
 import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
@@ -37,7 +45,6 @@ import be.nabu.libs.property.api.Value;
 import be.nabu.libs.resources.api.ReadableResource;
 import be.nabu.libs.types.BaseTypeInstance;
 import be.nabu.libs.types.CollectionHandlerFactory;
-import be.nabu.libs.types.DefinedTypeResolverFactory;
 import be.nabu.libs.types.SimpleTypeWrapperFactory;
 import be.nabu.libs.types.TypeUtils;
 import be.nabu.libs.types.api.CollectionHandler;
@@ -53,12 +60,10 @@ import be.nabu.libs.types.api.Unmarshallable;
 import be.nabu.libs.types.base.CollectionFormat;
 import be.nabu.libs.types.base.ComplexElementImpl;
 import be.nabu.libs.types.base.DynamicElement;
-import be.nabu.libs.types.binding.BindingUtils;
 import be.nabu.libs.types.binding.api.Window;
 import be.nabu.libs.types.binding.api.WindowedList;
 import be.nabu.libs.types.java.BeanInstance;
 import be.nabu.libs.types.java.BeanType;
-import be.nabu.libs.types.properties.CollectionFormatProperty;
 import be.nabu.libs.types.properties.NameProperty;
 import be.nabu.utils.codec.TranscoderUtils;
 import be.nabu.utils.codec.impl.Base64Decoder;
@@ -131,7 +136,49 @@ public class XMLParserSAX extends DefaultHandler {
 	/**
 	 * The reader offset
 	 */
-	private int offset = -1;
+	private long offset = -1;
+	
+	/**
+	 * The offset in the resource where the reader started, nested parses (e.g. of lazy elements) start somewhere in the middle
+	 */
+	private long offsetBase;
+	
+	/**
+	 * Complex children are not parsed but only their offset is remembered, they are parsed when first accessed
+	 */
+	private boolean lazy;
+	
+	/**
+	 * The windowed lists keep a stream open to parse consecutive batches without starting over
+	 */
+	private boolean sequentialWindows;
+	
+	/**
+	 * The reader offset at the end of the current end tag, only tracked when we are building an offset index
+	 */
+	private long endOffset = -1;
+	
+	/**
+	 * If set, the offsets of all the windowed items are recorded in this index
+	 */
+	private OffsetIndex offsetIndex;
+	private Map<WindowedList, OffsetIndex.ListIndex> listIndexes = new IdentityHashMap<WindowedList, OffsetIndex.ListIndex>();
+	
+	/**
+	 * An index from a previous parse, it provides the namespace snapshots for the windowed lists
+	 */
+	private OffsetIndex loadedIndex;
+	
+	/**
+	 * Allows the windowed lists to seek to byte offsets
+	 */
+	private ByteOffsetTable byteOffsets;
+	
+	/**
+	 * The windowed lists (and their window paths) in the order they were created
+	 */
+	private List<WindowedList> windowedLists = new ArrayList<WindowedList>();
+	private List<String> windowedListPaths = new ArrayList<String>();
 
 	private ComplexType type;
 	
@@ -140,34 +187,46 @@ public class XMLParserSAX extends DefaultHandler {
 	private ComplexContent instance;
 	
 	/**
-	 * Keeps track (path-wise) where we are
+	 * The state of every open element, the frames are reused so nothing is allocated or locked per element
 	 */
-	private Stack<String> pathStack = new Stack<String>();
+	private Frame [] frames = new Frame[16];
+	private int depth;
 	
 	/**
-	 * Keeps track of the collection indexes (for maps)
+	 * Per window it keeps track of the start of the current element for this window
 	 */
-	private Stack<String> collectionIndexes = new Stack<String>();
+	private Map<Window, Long> windowOffsets = new HashMap<Window, Long>();
 	
 	/**
-	 * Keeps track of the instances of the complex elements that contain the other elements
+	 * If set, the stax adapter reads primitive values with typed access and passes them in directly
 	 */
-	private Stack<ComplexContent> contentStack = new Stack<ComplexContent>();
+	private boolean typedValues;
 	
 	/**
-	 * Keeps track of the element definitions that we use
+	 * Bean types are instantiated and populated through method handles where possible
 	 */
-	private Stack<Element<?>> elementStack = new Stack<Element<?>>();
+	private boolean directBeans;
+	private Object typedValue;
+	private boolean hasTypedValue;
 	
 	/**
-	 * Keeps track of the any elements we are working with, they need to be set differently
+	 * Binary content is decoded while it is being read, streams that exceed the threshold are spooled to a temporary file
 	 */
-	private Stack<String> anyStack = new Stack<String>();
+	private long binarySpoolThreshold = Long.MAX_VALUE;
+	private Base64Spool binarySpool;
 	
 	/**
-	 * Per window it keeps track of the start of the current element for this window
+	 * The spooled content we handed out during this parse, if the parse fails nobody else can close them
+	 * They are weakly held, anything that is dropped along the way is cleaned up when it is no longer reachable
+	 */
+	private Set<Closeable> handedOut = Collections.newSetFromMap(new WeakHashMap<Closeable, Boolean>());
+	
+	/**
+	 * Text content that exceeds the threshold (in characters) is moved to a temporary file if the type accepts a character sequence or reader
 	 */
-	private Map<Window, Integer> windowOffsets = new HashMap<Window, Integer>();
+	private int textSpoolThreshold = Integer.MAX_VALUE;
+	private TextSpool textSpool;
+	private boolean spoolText;
 	
 	private boolean isSimpleType = false;
 	private boolean isComplexType = false;
@@ -184,21 +243,174 @@ public class XMLParserSAX extends DefaultHandler {
 	/**
 	 * Keeps track of textual content
 	 */
-	private StringWriter content;
+	private char [] content = new char[256];
+	/**
+	 * The amount of characters in the content buffer, -1 if there was no textual content at all
+	 */
+	private int contentLength = -1;
+	/**
+	 * Buffers that grew beyond this are not retained after the element
+	 */
+	private static final int MAX_RETAINED_CONTENT = 1024 * 1024;
 	
 	private boolean firstElement = true;
 	
 	private Value<?> [] values;
 	
+	/**
+	 * Complex elements at this path are passed to the record handler instead of being added to their parent
+	 */
+	private String recordPath;
+	private Consumer<ComplexContent> recordHandler;
+	
+	/**
+	 * The window and record paths, compiled when first needed
+	 */
+	private PathTrie pathTrie;
+	
 	protected Window getWindow() {
-		String currentPath = getCurrentPath();
-		for (Window window : windows) {
-			String windowPath = window.getPath();
-			if (!windowPath.startsWith("/")) {
-				windowPath = "/" + windowPath;
+		PathTrie.Node node = getCurrentNode();
+		return node == null ? null : node.getWindow();
+	}
+	
+	private PathTrie.Node getCurrentNode() {
+		Frame frame = getContentFrame(depth);
+		return frame == null ? getRootNode() : frame.node;
+	}
+	
+	/**
+	 * If set, only these paths (e.g. company/employees/id) are parsed, everything else is skipped
+	 */
+	private Collection<String> projection;
+	private PathTrie projectionTrie;
+	
+	/**
+	 * If set, we stop parsing once an element has been parsed for each of these paths
+	 */
+	private Collection<String> requiredPaths;
+	private PathTrie requiredTrie;
+	private Set<PathTrie.Node> boundPaths = new HashSet<PathTrie.Node>();
+	
+	/**
+	 * If set, it is checked every time an element ends, once it returns true we stop parsing
+	 * The pending list items are attached before it is checked
+	 */
+	private Predicate<ComplexContent> stopCondition;
+	
+	/**
+	 * The pending list that changed since the stop condition was last checked
+	 */
+	private ComplexContent changedContent;
+	private String changedName;
+	private List<Object> changedList;
+	
+	/**
+	 * Whether we stopped before the end of the document, the sax parser can only be stopped by throwing an exception
+	 * The stax parser simply checks isDone()
+	 */
+	private boolean stopped, throwOnStop = true;
+	
+	private PathTrie getRequiredTrie() {
+		if (requiredTrie == null) {
+			requiredTrie = new PathTrie(requiredPaths);
+		}
+		return requiredTrie;
+	}
+	
+	private PathTrie.Node getProjectionRoot() {
+		if (projectionTrie == null) {
+			projectionTrie = new PathTrie(projection);
+		}
+		return projectionTrie.getRoot();
+	}
+	
+	private PathTrie.Node getRootNode() {
+		if (pathTrie == null) {
+			pathTrie = new PathTrie(windows, recordPath);
+		}
+		return pathTrie.getRoot();
+	}
+	
+	/**
+	 * The state we keep for an open element
+	 */
+	private static class Frame {
+		/**
+		 * The element definition, this is null for the root
+		 */
+		private ElementPlan element;
+		/**
+		 * The collection index (for maps)
+		 */
+		private String collectionIndex;
+		/**
+		 * Any elements need to be set differently
+		 */
+		private boolean any;
+		/**
+		 * Only complex elements have an instance that contains other elements and are part of the path
+		 */
+		private boolean complex;
+		private String name;
+		private ComplexContent content;
+		private ParsePlan plan;
+		/**
+		 * A null node means no window or record path goes through this path
+		 */
+		private PathTrie.Node node;
+		/**
+		 * The lists we are building for the children, keyed by name
+		 */
+		private Map<String, List<Object>> lists;
+		/**
+		 * The projected paths that continue through this element, null if everything beneath it is selected
+		 */
+		private PathTrie.Node projection;
+		/**
+		 * The required paths that continue through this element
+		 */
+		private PathTrie.Node required;
+		
+		private void reset() {
+			if (lists != null) {
+				lists.clear();
 			}
-			if (windowPath.equals(currentPath)) {
-				return window;
+			element = null;
+			collectionIndex = null;
+			any = false;
+			complex = false;
+			name = null;
+			content = null;
+			plan = null;
+			node = null;
+			projection = null;
+			required = null;
+		}
+	}
+	
+	private Frame push() {
+		if (depth == frames.length) {
+			frames = Arrays.copyOf(frames, depth * 2);
+		}
+		Frame frame = frames[depth];
+		if (frame == null) {
+			frame = new Frame();
+			frames[depth] = frame;
+		}
+		else {
+			frame.reset();
+		}
+		depth++;
+		return frame;
+	}
+	
+	/**
+	 * The closest complex element below the given depth, this is the instance new elements are added to
+	 */
+	private Frame getContentFrame(int depth) {
+		for (int i = depth - 1; i >= 0; i--) {
+			if (frames[i].complex) {
+				return frames[i];
 			}
 		}
 		return null;
@@ -241,20 +453,141 @@ public class XMLParserSAX extends DefaultHandler {
 	
 	public void clear() {
 		firstElement = true;
-		contentStack.clear();
+		for (int i = 0; i < frames.length && frames[i] != null; i++) {
+			frames[i].reset();
+		}
+		depth = 0;
+		windowedLists.clear();
+		windowedListPaths.clear();
+		listIndexes.clear();
 		instance = null;
+		hasTypedValue = false;
+		typedValue = null;
+		discardBinarySpool();
+		discardTextSpool();
+		handedOut.clear();
+		stopped = false;
+		boundPaths.clear();
+		changedContent = null;
+		changedName = null;
+		changedList = null;
+	}
+	
+	/**
+	 * Removes all the spooled content of this parse, use this if the result is discarded (e.g. because the parse failed)
+	 */
+	public void discardSpools() {
+		discardBinarySpool();
+		discardTextSpool();
+		for (Closeable closeable : new ArrayList<Closeable>(handedOut)) {
+			try {
+				closeable.close();
+			}
+			catch (IOException e) {
+				// the file is deleted even if closing fails
+			}
+		}
+		handedOut.clear();
+	}
+	
+	private void discardTextSpool() {
+		spoolText = false;
+		if (textSpool != null) {
+			try {
+				textSpool.close();
+			}
+			catch (IOException e) {
+				// the file is deleted even if closing fails
+			}
+			textSpool = null;
+		}
+	}
+	
+	private void discardBinarySpool() {
+		if (binarySpool != null) {
+			try {
+				binarySpool.close();
+			}
+			catch (IOException e) {
+				// the file is deleted even if closing fails
+			}
+			binarySpool = null;
+		}
 	}
 
+	/**
+	 * Whether an element with this name that starts at the current position would be a record
+	 */
+	boolean isRecordStart(String localName) {
+		if (recordPath == null || getContentFrame(depth) == null || ignoreCounter > 0) {
+			return false;
+		}
+		PathTrie.Node node = getCurrentNode();
+		node = node == null ? null : node.getChild(normalize(localName));
+		return node != null && node.isRecord();
+	}
+	
+	/**
+	 * The name of the element as it is used in the paths
+	 */
+	String normalize(String localName) {
+		return getNameTable().get(localName).getRenamed();
+	}
+	
+	ComplexContent getCurrentContent() {
+		Frame frame = getContentFrame(depth);
+		return frame == null ? null : frame.content;
+	}
+	
+	ParsePlan getCurrentPlan() {
+		Frame frame = getContentFrame(depth);
+		return frame == null ? null : frame.plan;
+	}
+	
+	Map<String, String> getNamespaces() {
+		return namespaces;
+	}
+	
 	private String preprocess(String name) {
-		if (camelCaseDashes) {
-			name = BindingUtils.camelCaseCharacter(name, '-');
+		return getNameTable().get(name).getPreprocessed();
+	}
+	
+	NameTable getNameTable() {
+		if (nameTable == null) {
+			nameTable = new NameTable(camelCaseDashes, camelCaseUnderscores, renameTag);
 		}
-		if (camelCaseUnderscores) {
-			name = BindingUtils.camelCaseCharacter(name, '_');			
+		return nameTable;
+	}
+	
+	public void setNameTable(NameTable nameTable) {
+		this.nameTable = nameTable;
+	}
+	
+	CustomTagIndex getCustomTagIndex() {
+		if (customTagMapping == null || customTagMapping.isEmpty()) {
+			return null;
+		}
+		// the mapping can be modified after it is set, we check this once per parse
+		else if (customTagIndex == null || (firstElement && !customTagIndex.isFor(customTagMapping))) {
+			customTagIndex = new CustomTagIndex(customTagMapping);
 		}
-		return name;
+		return customTagIndex;
+	}
+	
+	public void setCustomTagIndex(CustomTagIndex customTagIndex) {
+		this.customTagIndex = customTagIndex;
 	}
 	
+	/**
+	 * The reverse lookup for the custom tag mapping
+	 */
+	private CustomTagIndex customTagIndex;
+	
+	/**
+	 * Caches the preprocessed and renamed tag names, if none is set we build our own from the settings
+	 */
+	private NameTable nameTable;
+	
 	// map the custom tag to a specific class
 	private Map<String, String> customTagMapping = new HashMap<>();
 	// this means you probably also need to normalize the tag
@@ -278,35 +611,53 @@ public class XMLParserSAX extends DefaultHandler {
 			localName = qName;
 		}
 		
-		localName = preprocess(localName);
+		NameTable.Name tagName = getNameTable().get(localName);
+		localName = tagName.getPreprocessed();
+		
+		// elements outside of the projection are skipped before we do anything with them
+		PathTrie.Node projected = null;
+		if (projection != null) {
+			PathTrie.Node parentProjection = depth == 0 ? getProjectionRoot() : frames[depth - 1].projection;
+			if (parentProjection != null) {
+				projected = parentProjection.getChild(tagName.getRenamed());
+				if (projected == null) {
+					// the root is always parsed, even if none of its children are selected
+					if (depth == 0) {
+						projected = PathTrie.Node.NONE;
+					}
+					else {
+						ignoreCounter++;
+						return;
+					}
+				}
+				// everything beneath a selected path is parsed
+				else if (projected.isSelected()) {
+					projected = null;
+				}
+			}
+		}
+		
+		PathTrie.Node required = null;
+		if (requiredPaths != null) {
+			PathTrie.Node parentRequired = depth == 0 ? getRequiredTrie().getRoot() : frames[depth - 1].required;
+			required = parentRequired == null ? null : parentRequired.getChild(tagName.getRenamed());
+		}
 		
 		Map<String, String> elementAttributes = new HashMap<String, String>();
 
 		Type actualType = null;
 		
 		// if we have a mapping for it, find it
-		if (customTagMapping != null && customTagMapping.containsValue(localName)) {
-			for (Map.Entry<String, String> entry : customTagMapping.entrySet()) {
-				if (entry.getValue().equals(localName)) {
-					if (registry != null) {
-						String typeNamespace = namespaces.get(null);
-						actualType = registry.getComplexType(typeNamespace, entry.getKey());
-					}
-					// if all else fails: resolve it against the the defined type factory
-					if (actualType == null) {
-						actualType = DefinedTypeResolverFactory.getInstance().getResolver().resolve(entry.getKey());
-					}
-					if (actualType == null) {
-						throw new SAXException("Could not resolve actual xsi type: " + entry.getKey());
-					}
-				}
+		CustomTagIndex customTagIndex = getCustomTagIndex();
+		if (customTagIndex != null && customTagIndex.isMapped(localName)) {
+			actualType = customTagIndex.resolve(localName, registry, registry == null ? null : namespaces.get(null));
+			if (actualType == null) {
+				throw new SAXException("Could not resolve actual xsi type: " + customTagIndex.getId(localName));
 			}
 		}
-		if (renameTag != null && renameTag.containsKey(localName)) {
-			localName = renameTag.get(localName);
-		}
+		localName = tagName.getRenamed();
 		
-		boolean foundCollection = false;
+		String collectionIndex = null;
 		// we need to go through the attributes first because it might contain things like xsi:type to indicate another type
 		for (int i = 0; i < attributes.getLength(); i++) {
 			String namespace = attributes.getURI(i);
@@ -320,17 +671,8 @@ public class XMLParserSAX extends DefaultHandler {
 					String prefix = index < 0 ? null : attributes.getValue(i).substring(0, index);
 					String typeNamespace = namespaces.get(prefix);
 					String typeId = index < 0 ? attributes.getValue(i) : attributes.getValue(i).substring(index + 1);
-					// try to resolve it against the registry
-					if (registry != null) {
-						actualType = registry.getComplexType(typeNamespace, typeId);
-						if (actualType == null) {
-							actualType = registry.getSimpleType(typeNamespace, typeId);
-						}
-					}
-					// if all else fails: resolve it against the the defined type factory
-					if (actualType == null) {
-						actualType = DefinedTypeResolverFactory.getInstance().getResolver().resolve(typeId);
-					}
+					// try to resolve it against the registry and if all else fails: against the defined type factory
+					actualType = XSITypeCache.resolve(registry, typeNamespace, typeId);
 					// if we can not resolve the type, we probably have a problem
 					// we might want to add a boolean to influence this behavior
 					if (actualType == null) {
@@ -339,30 +681,27 @@ public class XMLParserSAX extends DefaultHandler {
 				}
 			}
 			else if ("collectionIndex".equals(attributes.getLocalName(i))) {
-				foundCollection = true;
-				collectionIndexes.push(attributes.getValue(i));
+				collectionIndex = attributes.getValue(i);
 			}
 			else
 				elementAttributes.put(attributes.getLocalName(i), attributes.getValue(i));
 		}
-		// always push something on collection indexes
-		if (!foundCollection) {
-			collectionIndexes.push(null);
-		}
 
-		Element<?> element = null;
-		if (contentStack.isEmpty()) {
+		Frame parent = getContentFrame(depth);
+		boolean isAny = false;
+		ElementPlan elementPlan = null;
+		if (parent == null) {
 			firstElement = false;
-			element = new ComplexElementImpl(type, null, values);
+			elementPlan = new ElementPlan(new ComplexElementImpl(type, null, values));
 		}
 		else {
-			element = contentStack.peek().getType().get(localName);
+			elementPlan = parent.plan.getChild(localName);
 		}
 		// it does not exist
-		if (element == null) {
+		if (elementPlan == null) {
 			// check if there is an xsd:any
-			element = contentStack.peek().getType().get(NameProperty.ANY);
-			if (element == null) {
+			ElementPlan anyPlan = parent.plan.getChild(NameProperty.ANY);
+			if (anyPlan == null) {
 				if (!ignoreUndefined)
 					throw new SAXException("The element " + localName + " is not expected at this position");
 				else {
@@ -372,43 +711,51 @@ public class XMLParserSAX extends DefaultHandler {
 				}
 			}
 			else {
-				anyStack.push(getCurrentPath() + "/" + localName);
+				isAny = true;
 				// TODO: this means we currently only support complex types in an any field, a simple string won't be parsed successfully!
 				// how to determine that it's a text field...?
 				// the type is an empty object type
 				// if there is no actual type (no xsi), just interpret as string
-				element = new DynamicElement(element, actualType == null ? new be.nabu.libs.types.simple.String() : actualType, localName);
+				elementPlan = new ElementPlan(new DynamicElement(anyPlan.getElement(), actualType == null ? new be.nabu.libs.types.simple.String() : actualType, localName));
 			}
 		}
 		if (ignoreCounter == 0) {
-			elementStack.push(contentStack.isEmpty() ? null : element);
-			Type intendedType = elementStack.peek() == null ? type : elementStack.peek().getType();
-			if (contentStack.isEmpty() && forceRootTypeMatch && !element.getName().equals(localName))
+			Element<?> element = elementPlan.getElement();
+			Frame frame = push();
+			frame.element = parent == null ? null : elementPlan;
+			frame.collectionIndex = collectionIndex;
+			frame.any = isAny;
+			frame.projection = projected;
+			frame.required = required;
+			Type intendedType = frame.element == null ? type : element.getType();
+			if (parent == null && forceRootTypeMatch && !element.getName().equals(localName))
 				throw new SAXException("The root tag " + localName + " does not match the expected name: " + element.getName());
-			boolean allowAll = intendedType instanceof BeanType && ((BeanType) intendedType).getBeanClass().equals(Object.class);
+			boolean allowAll = elementPlan.isWildcard();
 			if (actualType != null) {
 				// intended type can be null if no complex type is given
-				if (!allowAll && intendedType != null && !TypeUtils.isSameType(actualType, intendedType) && !TypeUtils.isSubset(new BaseTypeInstance(actualType), new BaseTypeInstance(intendedType)) && TypeUtils.getUpcastPath(actualType, intendedType).isEmpty()) {
-					// in java we have "multiple" inheritance of sorts through interfaces
-					// with complex enough structures, they are not picked up with simple upcast paths
-					if (intendedType instanceof BeanType && actualType instanceof BeanType && ((BeanType) intendedType).getBeanClass().isAssignableFrom(((BeanType) actualType).getBeanClass())) {
-						intendedType = actualType;
-					}
-					else if (!allowSuperTypes || (!TypeUtils.isSubset(new BaseTypeInstance(intendedType), new BaseTypeInstance(actualType)) && TypeUtils.getUpcastPath(intendedType, actualType).isEmpty())) {
-						throw new SAXException("The xsi type " + actualType + " is not compatible with the defined type " + intendedType);
-					}
-					else {
-						intendedType = actualType;
-					}
+				if (!allowAll && intendedType != null && !isCompatible(actualType, intendedType)) {
+					throw new SAXException("The xsi type " + actualType + " is not compatible with the defined type " + intendedType);
 				}
-				else
-					intendedType = actualType;
+				intendedType = actualType;
 			}
 			// if we have no actual type but we do have an Object.class level thing, we assume string
 			// we can't actually add children to the object anyway and the content data _is_ a string
 			else if (allowAll) {
 				intendedType = SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class);
 			}
+			// in lazy mode we skip the complex children and parse them when they are first accessed
+			// required elements are always parsed so we know when they are bound
+			if (required == null && isLazy(parent, elementPlan, intendedType, collectionIndex, isAny, localName)) {
+				ComplexType complexType = (ComplexType) intendedType;
+				PartialXMLUnmarshaller unmarshaller = newPartialUnmarshaller(new HashMap<String, String>(namespaces), complexType, elementPlan.getProperties());
+				// a lazy element is read exactly once, a cursor would only keep the stream open
+				unmarshaller.setSequential(false);
+				parent.content.set(localName, new LazyComplexContent(resource, offsetBase + offset, complexType, unmarshaller));
+				depth--;
+				ignoreCounter++;
+				resetContent();
+				return;
+			}
 			if (intendedType instanceof ComplexType) {
 				isComplexType = true;
 				// complex types can also be simple
@@ -418,18 +765,20 @@ public class XMLParserSAX extends DefaultHandler {
 				// note: it is possible (per the spec) to have other attributes even is xsi:nil is set. you simply can not have content (text or elements)
 				// @2024-05-28: the actual root content may need to be present in some cases even if it has no attributes etc
 				// we check this by checking if root nulls are allowed OR there is already a parent in the content stack
-				contentStack.push(isNil && elementAttributes.isEmpty() && (allowRootNull || !contentStack.isEmpty()) ? null : complexType.newInstance());
+				frame.complex = true;
+				frame.content = isNil && elementAttributes.isEmpty() && (allowRootNull || parent != null) ? null : newInstance(complexType);
+				frame.plan = ParsePlan.getPlan(complexType);
 				// set it as the main instance
-				if (contentStack.size() == 1)
-					instance = contentStack.peek();
-				pathStack.push(localName);
+				if (parent == null)
+					instance = frame.content;
+				frame.name = localName;
+				PathTrie.Node parentNode = parent == null ? getRootNode() : parent.node;
+				frame.node = parentNode == null ? null : parentNode.getChild(localName);
 				for (String key : elementAttributes.keySet()) {
+					String value = elementAttributes.get(key);
 					key = preprocess(key);
-					Element<?> attributeElement = complexType.get(key);
-					if (attributeElement == null) {
-						attributeElement = complexType.get("@" + key);
-					}
-					if (attributeElement == null) {
+					ElementPlan attributePlan = frame.plan.getAttribute(key);
+					if (attributePlan == null) {
 						if (ignoreUndefined) {
 							continue;
 						}
@@ -438,11 +787,11 @@ public class XMLParserSAX extends DefaultHandler {
 						}
 					}
 					Object unmarshalled;
-					if (!(attributeElement.getType() instanceof Unmarshallable)) {
+					if (attributePlan.getAttributeUnmarshallable() == null) {
 						// if it's an inputstream, assume base64 encoding
-						if (attributeElement.getType() instanceof SimpleType && InputStream.class.isAssignableFrom(((SimpleType) attributeElement.getType()).getInstanceClass())) {
+						if (attributePlan.isStream()) {
 							try {
-								unmarshalled = IOUtils.toInputStream(TranscoderUtils.transcodeBytes(IOUtils.wrap(elementAttributes.get(key).getBytes("ASCII"), true), new Base64Decoder()), true);
+								unmarshalled = IOUtils.toInputStream(TranscoderUtils.transcodeBytes(IOUtils.wrap(value.getBytes("ASCII"), true), new Base64Decoder()), true);
 							}
 							catch (UnsupportedEncodingException e) {
 								throw new RuntimeException(e);
@@ -452,20 +801,14 @@ public class XMLParserSAX extends DefaultHandler {
 							}
 						}
 						else {
-							throw new SAXException("Can not unmarshal the attribute " + key + ", the type " + attributeElement.getType() + " is not unmarshallable");
+							throw new SAXException("Can not unmarshal the attribute " + key + ", the type " + attributePlan.getElement().getType() + " is not unmarshallable");
 						}
 					}
 					else {
 						// we can have a list in attributes by using a collection format
-						if (attributeElement.getType().isList(attributeElement.getProperties())) {
-							Value<CollectionFormat> property = attributeElement.getProperty(CollectionFormatProperty.getInstance());
-							CollectionFormat format = property == null ? CollectionFormat.SSV : property.getValue();
-							if (elementAttributes.get(key) != null && !elementAttributes.get(key).trim().isEmpty()) {
-								List<Object> parts = new ArrayList<Object>();
-								for (String part : elementAttributes.get(key).split("\\Q" + format.getCharacter() + "\\E")) {
-									parts.add(((Unmarshallable<?>) attributeElement.getType()).unmarshal(part, attributeElement.getProperties()));
-								}
-								unmarshalled = parts;
+						if (attributePlan.isList()) {
+							if (value != null && !value.trim().isEmpty()) {
+								unmarshalled = attributePlan.getSplitter().unmarshal(value, attributePlan.getAttributeUnmarshallable(), attributePlan.getProperties());
 							}
 							else {
 								unmarshalled = null;
@@ -473,14 +816,14 @@ public class XMLParserSAX extends DefaultHandler {
 						}
 						else {
 							try {
-								unmarshalled = ((Unmarshallable<?>) attributeElement.getType()).unmarshal(elementAttributes.get(key), attributeElement.getProperties());
+								unmarshalled = attributePlan.getAttributeUnmarshallable().unmarshal(value, attributePlan.getProperties());
 							}
 							catch (RuntimeException e) {
 								throw new RuntimeException("Could not parse attribute: " + key, e);
 							}
 						}
 					}
-					contentStack.peek().set("@" + key, unmarshalled);
+					frame.content.set("@" + key, unmarshalled);
 				}
 				// if it belongs in a window, store the starting offset so we can use it when the element ends
 				Window window = getWindow();
@@ -491,33 +834,133 @@ public class XMLParserSAX extends DefaultHandler {
 			else if (intendedType instanceof SimpleType) {
 				isSimpleType = true;
 				isComplexType = false;
+				spoolText = frame.element != null && elementPlan.isSpoolable() && !isNil;
+				// binary content we decode ourselves is decoded as it comes in, byte arrays are never spooled to file
+				if (frame.element != null && elementPlan.isBinary() && elementPlan.getUnmarshallable() == null && !isNil) {
+					discardBinarySpool();
+					binarySpool = new Base64Spool(elementPlan.isStream() ? binarySpoolThreshold : Long.MAX_VALUE);
+				}
 			}
 			else
 				throw new SAXException("Expecting either a complex or a simple type but " + intendedType + " is neither for element: " + element.getName());
 		}
 		// reset content if we start a new element as well, otherwise we get trailing content between last closing tag and this opening tag (mostly whitespace...)
-		this.content = null;
+		resetContent();
+	}
+	
+	private PartialXMLUnmarshaller newPartialUnmarshaller(Map<String, String> namespaces, ComplexType type, Value<?>...values) {
+		PartialXMLUnmarshaller unmarshaller = new PartialXMLUnmarshaller(namespaces, type, charset, windows, values);
+		unmarshaller.setCamelCaseDashes(camelCaseDashes);
+		unmarshaller.setCamelCaseUnderscores(camelCaseUnderscores);
+		unmarshaller.setIgnoreUndefined(ignoreUndefined);
+		unmarshaller.setTrimContent(trimContent);
+		unmarshaller.setByteOffsets(byteOffsets);
+		unmarshaller.setResource(resource);
+		unmarshaller.setTypedValues(typedValues);
+		unmarshaller.setDirectBeans(directBeans);
+		unmarshaller.setBinarySpoolThreshold(binarySpoolThreshold);
+		unmarshaller.setTextSpoolThreshold(textSpoolThreshold);
+		unmarshaller.setLazy(lazy);
+		unmarshaller.setSequential(sequentialWindows);
+		unmarshaller.setNameTable(getNameTable());
+		unmarshaller.setCustomTagMapping(customTagMapping);
+		unmarshaller.setCustomTagIndex(getCustomTagIndex());
+		return unmarshaller;
+	}
+	
+	/**
+	 * Only plain complex children can be parsed later, lists, windows, records and the like need to be parsed in place
+	 * Bean instances want the actual bean so they would force the parse immediately
+	 */
+	private boolean isLazy(Frame parent, ElementPlan elementPlan, Type intendedType, String collectionIndex, boolean isAny, String localName) {
+		if (!lazy || parent == null || parent.content == null || parent.content instanceof BeanInstance || resource == null || offset < 0) {
+			return false;
+		}
+		else if (isNil || isAny || collectionIndex != null || elementPlan.isList() || !(intendedType instanceof ComplexType) || intendedType instanceof SimpleType) {
+			return false;
+		}
+		return parent.node == null || parent.node.getChild(localName) == null;
+	}
+	
+	private ComplexContent newInstance(ComplexType complexType) {
+		// subclasses of the bean type might instantiate differently
+		if (directBeans && complexType.getClass().equals(BeanType.class)) {
+			ComplexContent content = BeanAccessors.newInstance((BeanType<?>) complexType);
+			if (content != null) {
+				return content;
+			}
+		}
+		return complexType.newInstance();
+	}
+	
+	@SuppressWarnings("rawtypes")
+	private boolean isCompatible(Type actualType, Type intendedType) {
+		Boolean compatible = XSITypeCache.isCompatible(actualType, intendedType, allowSuperTypes);
+		if (compatible == null) {
+			compatible = TypeUtils.isSameType(actualType, intendedType) 
+				|| TypeUtils.isSubset(new BaseTypeInstance(actualType), new BaseTypeInstance(intendedType)) 
+				|| !TypeUtils.getUpcastPath(actualType, intendedType).isEmpty()
+				// in java we have "multiple" inheritance of sorts through interfaces
+				// with complex enough structures, they are not picked up with simple upcast paths
+				|| (intendedType instanceof BeanType && actualType instanceof BeanType && ((BeanType) intendedType).getBeanClass().isAssignableFrom(((BeanType) actualType).getBeanClass()))
+				|| (allowSuperTypes && (TypeUtils.isSubset(new BaseTypeInstance(intendedType), new BaseTypeInstance(actualType)) || !TypeUtils.getUpcastPath(intendedType, actualType).isEmpty()));
+			XSITypeCache.setCompatible(actualType, intendedType, allowSuperTypes, compatible);
+		}
+		return compatible;
 	}
 	
 	private String getCurrentPath() {
-		if (pathStack.size() == 0)
+		if (getContentFrame(depth) == null)
 			return pathPrefix + "/";
 		else {
 			String path = pathPrefix;
-			for (String element : pathStack)
-				path += "/" + element;
+			for (int i = 0; i < depth; i++) {
+				if (frames[i].complex)
+					path += "/" + frames[i].name;
+			}
 			return path;
 		}
 	}
 	
 	@Override
 	public void characters(char[] ch, int start, int length) throws SAXException {
+		if (ignoreCounter == 0 && binarySpool != null) {
+			try {
+				binarySpool.write(ch, start, length);
+			}
+			catch (IOException e) {
+				throw new SAXException("Could not decode binary content", e);
+			}
+		}
 		// only retain the content if we are interested in it
-		if (ignoreCounter == 0) {
-			if (content == null) {
-				content = new StringWriter();
+		else if (ignoreCounter == 0) {
+			if (contentLength < 0) {
+				contentLength = 0;
+			}
+			if (spoolText && textSpool == null && (long) contentLength + length > textSpoolThreshold) {
+				try {
+					textSpool = new TextSpool();
+					textSpool.write(content, 0, contentLength);
+				}
+				catch (IOException e) {
+					throw new SAXException("Could not spool text content", e);
+				}
+				contentLength = 0;
 			}
-			content.append(new String(ch, start, length));
+			if (textSpool != null) {
+				try {
+					textSpool.write(ch, start, length);
+				}
+				catch (IOException e) {
+					throw new SAXException("Could not spool text content", e);
+				}
+				return;
+			}
+			if (contentLength + length > content.length) {
+				content = Arrays.copyOf(content, Math.max(content.length * 2, contentLength + length));
+			}
+			System.arraycopy(ch, start, content, contentLength, length);
+			contentLength += length;
 		}
 	}
 
@@ -531,48 +974,62 @@ public class XMLParserSAX extends DefaultHandler {
 		if (localName.isEmpty()) {
 			localName = qName;
 		}
-		localName = preprocess(localName);
+		localName = normalize(localName);
 		
-		boolean isAny = false;
-		if (!anyStack.isEmpty()) {
-			String pathToCheck = isSimpleType 
-				? getCurrentPath() + "/" + localName
-				: getCurrentPath();
-			if (anyStack.peek().equals(pathToCheck)) {
-				isAny = true;
-				anyStack.pop();
-			}
-		}
-		
-		if (renameTag != null && renameTag.containsKey(localName)) {
-			localName = renameTag.get(localName);
-		}
-		
-		// always pop because you always push
-		Object index = collectionIndexes.pop();
+		Frame frame = frames[depth - 1];
+		// the instance we add this element to
+		Frame parent = getContentFrame(depth - 1);
+		boolean isAny = frame.any;
+		Object index = frame.collectionIndex;
 		
 		// this is the end of a simple type
 		if (isSimpleType) {
-			String content = !isNil && this.content != null ? this.content.toString() : null;
-			if (trimContent && content != null) {
-				content = content.trim();
-			}
-			Value<CollectionFormat> collectionFormatProperty = elementStack.peek().getProperty(CollectionFormatProperty.getInstance());
+			String content = !isNil && !hasTypedValue && binarySpool == null && textSpool == null ? getContent() : null;
+			ElementPlan elementPlan = frame.element;
+			CollectionFormat collectionFormat = elementPlan.getCollectionFormat();
 			Object convertedContent = null;
-			if (content != null && content.length() > 0) {
-				Type typeToCheck = elementStack.peek().getType();
-				if (isComplexType && isSimpleType && typeToCheck instanceof ComplexType) {
-					typeToCheck = ((ComplexType) typeToCheck).get(ComplexType.SIMPLE_TYPE_VALUE) == null ? null : ((ComplexType) typeToCheck).get(ComplexType.SIMPLE_TYPE_VALUE).getType();
+			if (hasTypedValue) {
+				convertedContent = elementPlan.isStream() ? new ByteArrayInputStream((byte[]) typedValue) : typedValue;
+				hasTypedValue = false;
+				typedValue = null;
+				discardBinarySpool();
+			}
+			else if (binarySpool != null) {
+				try {
+					convertedContent = elementPlan.isStream() ? binarySpool.toInputStream() : binarySpool.toBytes();
+					if (convertedContent instanceof Closeable) {
+						handedOut.add((Closeable) convertedContent);
+					}
+				}
+				catch (IOException e) {
+					throw new SAXException("Could not decode binary content of '" + localName + "'", e);
 				}
-				while (typeToCheck != null && !(typeToCheck instanceof Unmarshallable)) {
-					typeToCheck = typeToCheck.getSuperType();
+				finally {
+					binarySpool = null;
 				}
+			}
+			else if (textSpool != null) {
+				try {
+					convertedContent = isNil ? null : elementPlan.isReader() ? textSpool.toReader(trimContent) : textSpool.toCharSequence(trimContent);
+					if (convertedContent instanceof Closeable) {
+						handedOut.add((Closeable) convertedContent);
+					}
+				}
+				catch (IOException e) {
+					throw new SAXException("Could not read spooled text content of '" + localName + "'", e);
+				}
+				finally {
+					discardTextSpool();
+				}
+			}
+			else if (content != null && content.length() > 0) {
+				Unmarshallable<?> unmarshallable = isComplexType && isSimpleType ? elementPlan.getValueUnmarshallable() : elementPlan.getUnmarshallable();
 				// no unmarshallable type found in the super types
-				if (typeToCheck == null) {
-					if (elementStack.peek().getType() instanceof SimpleType && (InputStream.class.isAssignableFrom(((SimpleType) elementStack.peek().getType()).getInstanceClass()) || byte[].class.isAssignableFrom(((SimpleType) elementStack.peek().getType()).getInstanceClass()))) {
+				if (unmarshallable == null) {
+					if (elementPlan.isBinary()) {
 						try {
 							ReadableContainer<ByteBuffer> transcodedBytes = TranscoderUtils.transcodeBytes(IOUtils.wrap(content.getBytes("ASCII"), true), new Base64Decoder());
-							convertedContent = InputStream.class.isAssignableFrom(((SimpleType) elementStack.peek().getType()).getInstanceClass()) 
+							convertedContent = elementPlan.isStream() 
 								? IOUtils.toInputStream(transcodedBytes, true)
 								: IOUtils.toBytes(transcodedBytes);
 						}
@@ -583,25 +1040,25 @@ public class XMLParserSAX extends DefaultHandler {
 							throw new RuntimeException(e);
 						}
 					}
+					// the content was small enough to stay in memory
+					else if (elementPlan.isSpoolable() && isSimpleType && !isComplexType) {
+						convertedContent = elementPlan.isReader() ? new StringReader(content) : content;
+					}
 					// we just leave it as a string, check line 352 for reason why
-					else if (elementStack.peek().getType() instanceof BeanType && ((BeanType) elementStack.peek().getType()).getBeanClass().equals(Object.class) && isSimpleType && !isComplexType) {
+					else if (elementPlan.isWildcard() && isSimpleType && !isComplexType) {
 						convertedContent = content;
 					}
 					else {
-						throw new SAXException("The element '" + localName + "' in " + getCurrentPath() + " can not be unmarshalled because it is of type: " + elementStack.peek().getType());
+						throw new SAXException("The element '" + localName + "' in " + getCurrentPath() + " can not be unmarshalled because it is of type: " + elementPlan.getElement().getType());
 					}
 				}
 				else {
-					if (elementStack.peek().getType().isList(elementStack.peek().getProperties()) && collectionFormatProperty != null) {
-						List<Object> parts = new ArrayList<Object>();
-						for (String part : content.split("\\Q" + collectionFormatProperty.getValue().getCharacter() + "\\E")) {
-							parts.add(((Unmarshallable<?>) elementStack.peek().getType()).unmarshal(part, elementStack.peek().getProperties()));
-						}
-						convertedContent = parts;
+					if (elementPlan.isList() && collectionFormat != null) {
+						convertedContent = elementPlan.getSplitter().unmarshal(content, unmarshallable, elementPlan.getProperties());
 					}
 					else {
 						try {
-							convertedContent = ((Unmarshallable<?>) typeToCheck).unmarshal(content, elementStack.peek().getProperties());
+							convertedContent = unmarshallable.unmarshal(content, elementPlan.getProperties());
 						}
 						catch (RuntimeException e) {
 							throw new SAXException("Can not parse field '" + localName + "'", e);
@@ -611,22 +1068,20 @@ public class XMLParserSAX extends DefaultHandler {
 			}
 			// it is a simple complex type, we want the textual content to be set in the value field
 			if (isComplexType) {
+				flushLists(frame);
 				// set the converted content as value
-				contentStack.peek().set(ComplexType.SIMPLE_TYPE_VALUE, convertedContent);
-				
-				// pop some stacks
-				ComplexContent pop = contentStack.pop();
-				pathStack.pop();
+				frame.content.set(ComplexType.SIMPLE_TYPE_VALUE, convertedContent);
 				
 				// set the actual content as value in the parent
-				contentStack.peek().set(elementStack.peek().getName(), pop);
+				parent.content.set(elementPlan.getElement().getName(), frame.content);
 			}
-			else if (elementStack.peek().getType().isList(elementStack.peek().getProperties())) {
-				Object list = contentStack.peek().get(localName);
-				if (collectionFormatProperty != null) {
+			else if (elementPlan.isList()) {
+				if (collectionFormat != null) {
+					flushList(parent, localName);
+					Object list = parent.content.get(localName);
 					// we want to be lenient and allow a combination of classic multi-tag lists and collection formatted lists
 					if (list == null) {
-						contentStack.peek().set(localName, convertedContent);
+						parent.content.set(localName, convertedContent);
 					}
 					else if (list instanceof Collection) {
 						((Collection) list).addAll((Collection) convertedContent);
@@ -635,42 +1090,58 @@ public class XMLParserSAX extends DefaultHandler {
 						throw new IllegalArgumentException("You have multiple instances of element '" + localName + "' which has a collection format that can not be merged because the list is of type: " + list.getClass());
 					}
 				}
+				// without an explicit index we simply append
+				else if (index == null) {
+					getList(parent, localName).add(convertedContent);
+				}
 				else {
-					if (index == null) {
-						if (list != null) {
-							CollectionHandlerProvider provider = collectionHandler.getHandler(list.getClass());
-							index = provider.getAsCollection(list).size();
-						}
-						else {
-							index = 0;
-						}
-					}
-					contentStack.peek().set(localName + "[" + index + "]", convertedContent);
+					flushList(parent, localName);
+					parent.content.set(localName + "[" + index + "]", convertedContent);
 				}
 			}
 			else if (isAny) {
 				// the indexed access it not always appreciated... but until we resolve the issue in the structure, we leave the original code
-				contentStack.peek().set(NameProperty.ANY + "[" + localName + "]", convertedContent);
-				//contentStack.peek().set(NameProperty.ANY + "/" + localName, convertedContent);
+				parent.content.set(NameProperty.ANY + "[" + localName + "]", convertedContent);
+				//parent.content.set(NameProperty.ANY + "/" + localName, convertedContent);
 			}
 			else {
-				contentStack.peek().set(localName, convertedContent);
+				parent.content.set(localName, convertedContent);
 			}
 			// reset simple type so the next "stop" doesn't think it's a simple type
 			isSimpleType = false;
 		}
 		// this is the end of a complex type
 		else {
-			Window activeWindow = getWindow();
-			ComplexContent currentInstance = contentStack.pop();
+			Window activeWindow = frame.node == null ? null : frame.node.getWindow();
+			boolean isRecord = recordHandler != null && frame.node != null && frame.node.isRecord();
+			ComplexContent currentInstance = frame.content;
 
-			String onStack = pathStack.pop();
+			String onStack = frame.name;
 			if (!onStack.equals(localName))
 				throw new SAXException("Closing tag " + localName + " did not have an opening tag, found " + onStack);
 
+			// attach the lists we built for the children
+			flushLists(frame);
+
+			// records are handed off and not retained
+			if (isRecord) {
+				// the handler owns whatever was spooled so far
+				handedOut.clear();
+				recordHandler.accept(currentInstance);
+			}
 			// append the complex content to the current path, beware of lists
-			if (elementStack.peek() != null && elementStack.peek().getType().isList(elementStack.peek().getProperties())) {
-				Object currentObject = contentStack.peek().get(localName);
+			// without an explicit index or a window we simply append
+			else if (frame.element != null && frame.element.isList() && index == null && activeWindow == null) {
+				Object item = unwrapIfNecessary(currentInstance);
+				// the whole list is set at once, a bean instance does not convert the items in that case
+				if (parent.content instanceof BeanInstance && item instanceof BeanInstance) {
+					item = ((BeanInstance<?>) item).getUnwrapped();
+				}
+				getList(parent, localName).add(item);
+			}
+			else if (frame.element != null && frame.element.isList()) {
+				flushList(parent, localName);
+				Object currentObject = parent.content.get(localName);
 				
 				if (activeWindow != null && offset < 0) {
 					throw new SAXException("Windowing was activated, but offsets are missing, please use the StAX parser for windowed parsing");
@@ -693,13 +1164,17 @@ public class XMLParserSAX extends DefaultHandler {
 
 					if (currentObject == null) {
 						// take a snapshotted copy of the namespaces
-						PartialXMLUnmarshaller unmarshaller = new PartialXMLUnmarshaller(new HashMap<String, String>(namespaces), (ComplexType) currentInstance.getType(), charset, windows, elementStack.peek().getProperties());
-						unmarshaller.setCamelCaseDashes(camelCaseDashes);
-						unmarshaller.setCamelCaseUnderscores(camelCaseUnderscores);
-						unmarshaller.setIgnoreUndefined(ignoreUndefined);
-						unmarshaller.setTrimContent(trimContent);
+						Map<String, String> snapshot = loadedIndex != null && loadedIndex.getLists().size() > windowedLists.size() && loadedIndex.getLists().get(windowedLists.size()).getPath().equals(activeWindow.getPath())
+							? loadedIndex.getLists().get(windowedLists.size()).getNamespaces()
+							: new HashMap<String, String>(namespaces);
+						PartialXMLUnmarshaller unmarshaller = newPartialUnmarshaller(snapshot, (ComplexType) currentInstance.getType(), frame.element.getProperties());
 						windowedList = new WindowedList(resource, activeWindow, unmarshaller);
-						contentStack.peek().set(localName, windowedList);
+						parent.content.set(localName, windowedList);
+						windowedLists.add(windowedList);
+						windowedListPaths.add(activeWindow.getPath());
+						if (offsetIndex != null) {
+							listIndexes.put(windowedList, offsetIndex.addList(activeWindow.getPath(), snapshot));
+						}
 					}
 					else if (currentObject instanceof WindowedList) {
 						windowedList = (WindowedList) currentObject;
@@ -709,28 +1184,184 @@ public class XMLParserSAX extends DefaultHandler {
 					}
 					// always register the offset
 					windowedList.setOffset((Integer) index, windowOffsets.get(activeWindow));
+					if (offsetIndex != null && listIndexes.containsKey(windowedList)) {
+						OffsetIndex.ListIndex listIndex = listIndexes.get(windowedList);
+						listIndex.setOffset((Integer) index, windowOffsets.get(activeWindow));
+						listIndex.setEnd((Integer) index, endOffset);
+					}
 					
 					if ((Integer) index < activeWindow.getSize()) {
-						contentStack.peek().set(localName + "[" + index + "]", unwrapIfNecessary(currentInstance));
+						parent.content.set(localName + "[" + index + "]", unwrapIfNecessary(currentInstance));
 					}
 				}					
 				else {
-					contentStack.peek().set(localName + "[" + index + "]", unwrapIfNecessary(currentInstance));
+					parent.content.set(localName + "[" + index + "]", unwrapIfNecessary(currentInstance));
 				}
 			}
-			else if (contentStack.size() >= 1) {
+			else if (parent != null) {
 				if (isAny) {
-					contentStack.peek().set(NameProperty.ANY + "[" + localName + "]", unwrapIfNecessary(currentInstance));	
+					parent.content.set(NameProperty.ANY + "[" + localName + "]", unwrapIfNecessary(currentInstance));	
 				}
 				else {
-					contentStack.peek().set(localName, unwrapIfNecessary(currentInstance));
+					parent.content.set(localName, unwrapIfNecessary(currentInstance));
 				}
 			}
 		}
 		// reset isNil
 		isNil = false;
-		elementStack.pop();
-		this.content = null;
+		spoolText = false;
+		depth--;
+		resetContent();
+		// the root ends the document anyway
+		if (depth > 0 && (isBound(frame) || (stopCondition != null && instance != null && isStopCondition()))) {
+			stop();
+		}
+	}
+	
+	/**
+	 * The predicate should see the list items we have so far, so we attach the pending lists first
+	 * They stay pending so we can keep appending to them without copying the instance lists
+	 */
+	private boolean isStopCondition() {
+		// only one element ended since the last check so at most one list has changed
+		if (changedList != null) {
+			changedContent.set(changedName, changedList);
+			changedContent = null;
+			changedName = null;
+			changedList = null;
+		}
+		return stopCondition.test(instance);
+	}
+	
+	private boolean isBound(Frame frame) {
+		if (frame.required == null || !frame.required.isSelected() || !boundPaths.add(frame.required)) {
+			return false;
+		}
+		return boundPaths.size() >= getRequiredTrie().getSelectedCount();
+	}
+	
+	private void stop() throws SAXException {
+		stopped = true;
+		unwind();
+		if (throwOnStop) {
+			throw new SAXException("Parsing was stopped before the end of the document");
+		}
+	}
+	
+	/**
+	 * Attaches the elements that are still open to their parents so the result contains everything we parsed so far
+	 */
+	private void unwind() {
+		while (depth > 0) {
+			Frame frame = frames[depth - 1];
+			Frame parent = getContentFrame(depth - 1);
+			// open simple elements only have part of their content, open windowed items and records are incomplete
+			boolean partial = frame.node != null && (frame.node.getWindow() != null || frame.node.isRecord());
+			if (frame.complex && frame.content != null && !partial) {
+				flushLists(frame);
+				if (parent != null && parent.content != null) {
+					Object item = unwrapIfNecessary(frame.content);
+					if (frame.element != null && frame.element.isList() && frame.collectionIndex == null) {
+						if (parent.content instanceof BeanInstance && item instanceof BeanInstance) {
+							item = ((BeanInstance<?>) item).getUnwrapped();
+						}
+						getList(parent, frame.name).add(item);
+					}
+					else if (frame.element != null && frame.element.isList()) {
+						flushList(parent, frame.name);
+						parent.content.set(frame.name + "[" + frame.collectionIndex + "]", item);
+					}
+					else if (frame.any) {
+						parent.content.set(NameProperty.ANY + "[" + frame.name + "]", item);
+					}
+					else {
+						parent.content.set(frame.name, item);
+					}
+				}
+			}
+			depth--;
+		}
+		isSimpleType = false;
+		isComplexType = false;
+		isNil = false;
+		discardBinarySpool();
+		discardTextSpool();
+		resetContent();
+	}
+	
+	/**
+	 * Items without an explicit index are collected per list and attached in one go when their parent ends
+	 */
+	@SuppressWarnings({ "rawtypes", "unchecked" })
+	private List<Object> getList(Frame frame, String name) {
+		if (frame.lists == null) {
+			frame.lists = new HashMap<String, List<Object>>();
+		}
+		List<Object> list = frame.lists.get(name);
+		if (list == null) {
+			list = new ArrayList<Object>();
+			// the instance might already contain items
+			Object existing = frame.content.get(name);
+			if (existing != null) {
+				CollectionHandlerProvider provider = collectionHandler.getHandler(existing.getClass());
+				list.addAll(provider.getAsCollection(existing));
+			}
+			frame.lists.put(name, list);
+		}
+		if (stopCondition != null) {
+			changedContent = frame.content;
+			changedName = name;
+			changedList = list;
+		}
+		return list;
+	}
+	
+	/**
+	 * Attaches a single list, this is necessary before we access the list in the instance itself
+	 */
+	private void flushList(Frame frame, String name) {
+		if (frame.lists != null) {
+			List<Object> list = frame.lists.remove(name);
+			if (list != null) {
+				frame.content.set(name, list);
+			}
+		}
+	}
+	
+	private void flushLists(Frame frame) {
+		if (frame.lists != null && !frame.lists.isEmpty()) {
+			for (Map.Entry<String, List<Object>> entry : frame.lists.entrySet()) {
+				frame.content.set(entry.getKey(), entry.getValue());
+			}
+			frame.lists.clear();
+		}
+	}
+	
+	/**
+	 * The string is only built once, and already trimmed if necessary
+	 */
+	private String getContent() {
+		if (contentLength < 0) {
+			return null;
+		}
+		int start = 0, end = contentLength;
+		if (trimContent) {
+			// same as String.trim()
+			while (start < end && content[start] <= ' ') {
+				start++;
+			}
+			while (end > start && content[end - 1] <= ' ') {
+				end--;
+			}
+		}
+		return new String(content, start, end - start);
+	}
+	
+	private void resetContent() {
+		contentLength = -1;
+		if (content.length > MAX_RETAINED_CONTENT) {
+			content = new char[256];
+		}
 	}
 	
 	private Object unwrapIfNecessary(ComplexContent content) {
@@ -738,7 +1369,7 @@ public class XMLParserSAX extends DefaultHandler {
 	}
 	
 	public boolean isDone() {
-		return !firstElement && contentStack.isEmpty();
+		return stopped || (!firstElement && depth == 0);
 	}
 
 	public ComplexContent getInstance() {
@@ -749,14 +1380,62 @@ public class XMLParserSAX extends DefaultHandler {
 		return type;
 	}
 
-	public int getOffset() {
+	public long getOffsetBase() {
+		return offsetBase;
+	}
+
+	public void setOffsetBase(long offsetBase) {
+		this.offsetBase = offsetBase;
+	}
+
+	public long getOffset() {
 		return offset;
 	}
 
-	public void setOffset(int offset) {
+	public void setOffset(long offset) {
 		this.offset = offset;
 	}
 
+	public long getEndOffset() {
+		return endOffset;
+	}
+
+	public void setEndOffset(long endOffset) {
+		this.endOffset = endOffset;
+	}
+
+	public OffsetIndex getOffsetIndex() {
+		return offsetIndex;
+	}
+
+	public void setOffsetIndex(OffsetIndex offsetIndex) {
+		this.offsetIndex = offsetIndex;
+	}
+
+	public OffsetIndex getLoadedIndex() {
+		return loadedIndex;
+	}
+
+	public void setLoadedIndex(OffsetIndex loadedIndex) {
+		this.loadedIndex = loadedIndex;
+	}
+	
+	public ByteOffsetTable getByteOffsets() {
+		return byteOffsets;
+	}
+
+	public void setByteOffsets(ByteOffsetTable byteOffsets) {
+		this.byteOffsets = byteOffsets;
+	}
+	
+	List<WindowedList> getWindowedLists() {
+		return windowedLists;
+	}
+	
+	List<String> getWindowedListPaths() {
+		return windowedListPaths;
+	}
+
 	public XMLBinding getBinding() {
 		return binding;
 	}
@@ -803,6 +1482,7 @@ public class XMLParserSAX extends DefaultHandler {
 
 	public void setCamelCaseDashes(boolean camelCaseDashes) {
 		this.camelCaseDashes = camelCaseDashes;
+		this.nameTable = null;
 	}
 
 	public boolean isCamelCaseUnderscores() {
@@ -811,6 +1491,7 @@ public class XMLParserSAX extends DefaultHandler {
 
 	public void setCamelCaseUnderscores(boolean camelCaseUnderscores) {
 		this.camelCaseUnderscores = camelCaseUnderscores;
+		this.nameTable = null;
 	}
 
 	public boolean isAllowSuperTypes() {
@@ -829,6 +1510,74 @@ public class XMLParserSAX extends DefaultHandler {
 		this.forceRootTypeMatch = forceRootTypeMatch;
 	}
 
+	/**
+	 * Which kind of typed value can be read for the element that was just started
+	 */
+	int getTypedKind() {
+		if (!typedValues || ignoreCounter > 0 || !isSimpleType || isComplexType || isNil || depth == 0 || frames[depth - 1].element == null) {
+			return ElementPlan.TYPED_NONE;
+		}
+		ElementPlan plan = frames[depth - 1].element;
+		// typed binary access reads the whole value in memory, streams are better off in the spool
+		if (binarySpool != null && plan.isStream()) {
+			return ElementPlan.TYPED_NONE;
+		}
+		return plan.getTypedKind();
+	}
+	
+	void setTypedValue(Object typedValue) {
+		this.typedValue = typedValue;
+		this.hasTypedValue = true;
+	}
+	
+	public boolean isSequentialWindows() {
+		return sequentialWindows;
+	}
+
+	public void setSequentialWindows(boolean sequentialWindows) {
+		this.sequentialWindows = sequentialWindows;
+	}
+
+	public boolean isLazy() {
+		return lazy;
+	}
+
+	public void setLazy(boolean lazy) {
+		this.lazy = lazy;
+	}
+
+	public int getTextSpoolThreshold() {
+		return textSpoolThreshold;
+	}
+
+	public void setTextSpoolThreshold(int textSpoolThreshold) {
+		this.textSpoolThreshold = textSpoolThreshold;
+	}
+
+	public long getBinarySpoolThreshold() {
+		return binarySpoolThreshold;
+	}
+
+	public void setBinarySpoolThreshold(long binarySpoolThreshold) {
+		this.binarySpoolThreshold = binarySpoolThreshold;
+	}
+
+	public boolean isDirectBeans() {
+		return directBeans;
+	}
+
+	public void setDirectBeans(boolean directBeans) {
+		this.directBeans = directBeans;
+	}
+
+	public boolean isTypedValues() {
+		return typedValues;
+	}
+
+	public void setTypedValues(boolean typedValues) {
+		this.typedValues = typedValues;
+	}
+
 	public boolean isUnwrapBeans() {
 		return unwrapBeans;
 	}
@@ -851,6 +1600,7 @@ public class XMLParserSAX extends DefaultHandler {
 
 	public void setCustomTagMapping(Map<String, String> customTagMapping) {
 		this.customTagMapping = customTagMapping;
+		this.customTagIndex = null;
 	}
 
 	public Map<String, String> getRenameTag() {
@@ -859,6 +1609,61 @@ public class XMLParserSAX extends DefaultHandler {
 
 	public void setRenameTag(Map<String, String> renameTag) {
 		this.renameTag = renameTag;
+		this.nameTable = null;
+	}
+
+	public String getRecordPath() {
+		return recordPath;
+	}
+
+	public boolean isStopped() {
+		return stopped;
+	}
+	
+	void setThrowOnStop(boolean throwOnStop) {
+		this.throwOnStop = throwOnStop;
+	}
+
+	public Collection<String> getRequiredPaths() {
+		return requiredPaths;
+	}
+
+	public void setRequiredPaths(Collection<String> requiredPaths) {
+		this.requiredPaths = requiredPaths;
+		this.requiredTrie = null;
+	}
+
+	public Predicate<ComplexContent> getStopCondition() {
+		return stopCondition;
+	}
+
+	public void setStopCondition(Predicate<ComplexContent> stopCondition) {
+		this.stopCondition = stopCondition;
+	}
+
+	public Collection<String> getProjection() {
+		return projection;
+	}
+
+	public void setProjection(Collection<String> projection) {
+		this.projection = projection;
+		this.projectionTrie = null;
+	}
+
+	public void setRecordPath(String recordPath) {
+		if (recordPath != null && !recordPath.startsWith("/")) {
+			recordPath = "/" + recordPath;
+		}
+		this.recordPath = recordPath;
+		this.pathTrie = null;
+	}
+
+	public Consumer<ComplexContent> getRecordHandler() {
+		return recordHandler;
+	}
+
+	public void setRecordHandler(Consumer<ComplexContent> recordHandler) {
+		this.recordHandler = recordHandler;
 	}
 
 }
\ No newline at end of file
@@ -21,8 +21,10 @@ import javax.xml.stream.XMLStreamException;
 import javax.xml.stream.XMLStreamReader;
 import javax.xml.stream.events.XMLEvent;
 
+import org.codehaus.stax2.XMLStreamReader2;
+import org.codehaus.stax2.typed.TypedXMLStreamException;
+import org.codehaus.stax2.typed.TypedXMLStreamReader;
 import org.xml.sax.SAXException;
-import org.xml.sax.helpers.AttributesImpl;
 
 import be.nabu.libs.property.api.Value;
 import be.nabu.libs.types.api.ComplexContent;
@@ -56,13 +58,17 @@ public class XMLParserStAX {
 //	}
 //	
 	private XMLParserSAX saxParser;
+	private StAXAttributes attributes = new StAXAttributes();
 	
 	public XMLParserStAX(ComplexType type, Window [] windows, Value<?>...values) {
 		saxParser = new XMLParserSAX(type, windows, values);
+		// we check isDone() after every event
+		saxParser.setThrowOnStop(false);
 	}
 	
 	XMLParserStAX(XMLParserSAX saxParser) {
 		this.saxParser = saxParser;
+		saxParser.setThrowOnStop(false);
 	}
 
 	public ComplexContent getInstance() {
@@ -71,41 +77,121 @@ public class XMLParserStAX {
 
 	public void parse(XMLStreamReader reader) throws XMLStreamException, SAXException {
 		saxParser.clear();
+		parseRemaining(reader);
+	}
+	
+	/**
+	 * Starts parsing at the event the reader is currently on instead of the next one
+	 */
+	void parseCurrent(XMLStreamReader reader) throws XMLStreamException, SAXException {
+		saxParser.clear();
+		handle(reader, reader.getEventType());
+		if (!saxParser.isDone()) {
+			parseRemaining(reader);
+		}
+	}
+	
+	private void parseRemaining(XMLStreamReader reader) throws XMLStreamException, SAXException {
 		while (reader.hasNext()) {
-			int eventType = reader.next();
-			switch (eventType) {
-				case XMLEvent.START_ELEMENT:
-					if (reader.getPrefix() != null && !reader.getPrefix().isEmpty()) {
-						saxParser.startPrefixMapping(reader.getPrefix(), reader.getNamespaceURI());
-					}
-					saxParser.setOffset(reader.getLocation().getCharacterOffset());
-					AttributesImpl attributes = new AttributesImpl();
-					for (int i = 0; i < reader.getAttributeCount(); i++) {
-						if (reader.getAttributePrefix(i) != null && !reader.getAttributePrefix(i).isEmpty()) {
-							saxParser.startPrefixMapping(reader.getAttributePrefix(i), reader.getAttributeNamespace(i));
-						}
-						attributes.addAttribute(
-							reader.getAttributeNamespace(i),
-							reader.getAttributeLocalName(i),
-							reader.getAttributeName(i).toString(),
-							reader.getAttributeType(i), 
-							reader.getAttributeValue(i));
+			handle(reader, reader.next());
+			if (saxParser.isDone()) {
+				break;
+			}
+		}
+	}
+	
+	/**
+	 * Passes a single stax event to the sax parser
+	 * Nothing is allocated per event: the attributes are a reused view on the reader and text is passed from the reader's own buffer
+	 */
+	void handle(XMLStreamReader reader, int eventType) throws XMLStreamException, SAXException {
+		switch (eventType) {
+			case XMLEvent.START_ELEMENT:
+				String prefix = reader.getPrefix();
+				if (prefix != null && !prefix.isEmpty()) {
+					saxParser.startPrefixMapping(prefix, reader.getNamespaceURI());
+				}
+				saxParser.setOffset(getStartOffset(reader));
+				int attributeCount = reader.getAttributeCount();
+				for (int i = 0; i < attributeCount; i++) {
+					String attributePrefix = reader.getAttributePrefix(i);
+					if (attributePrefix != null && !attributePrefix.isEmpty()) {
+						saxParser.startPrefixMapping(attributePrefix, reader.getAttributeNamespace(i));
 					}
-					saxParser.startElement(reader.getNamespaceURI(), reader.getLocalName(), reader.getName().toString(), attributes);
+				}
+				attributes.setReader(reader);
+				saxParser.startElement(reader.getNamespaceURI(), reader.getLocalName(), getQName(reader, prefix), attributes);
+				int typedKind = reader instanceof TypedXMLStreamReader ? saxParser.getTypedKind() : ElementPlan.TYPED_NONE;
+				if (typedKind != ElementPlan.TYPED_NONE) {
+					readTyped((TypedXMLStreamReader) reader, typedKind);
+					// the typed read consumes the element up to and including the end tag
+					handle(reader, XMLEvent.END_ELEMENT);
+				}
+			break;
+			case XMLEvent.END_ELEMENT:
+				// only needed when building an index and it forces the parser to finish the token
+				if (saxParser.getOffsetIndex() != null && reader instanceof XMLStreamReader2) {
+					saxParser.setEndOffset(((XMLStreamReader2) reader).getLocationInfo().getEndingCharOffset());
+				}
+				saxParser.endElement(reader.getNamespaceURI(), reader.getLocalName(), getQName(reader, reader.getPrefix()));
+			break;
+			case XMLEvent.CHARACTERS:
+				saxParser.characters(reader.getTextCharacters(), reader.getTextStart(), reader.getTextLength());
+			break;
+			case XMLEvent.NAMESPACE:
+				saxParser.startPrefixMapping(reader.getPrefix(), reader.getNamespaceURI());
+			break;
+		}
+	}
+	
+	private void readTyped(TypedXMLStreamReader reader, int typedKind) throws XMLStreamException, SAXException {
+		try {
+			switch (typedKind) {
+				case ElementPlan.TYPED_INT:
+					saxParser.setTypedValue(reader.getElementAsInt());
 				break;
-				case XMLEvent.END_ELEMENT:
-					saxParser.endElement(reader.getNamespaceURI(), reader.getLocalName(), reader.getName().toString());
+				case ElementPlan.TYPED_LONG:
+					saxParser.setTypedValue(reader.getElementAsLong());
 				break;
-				case XMLEvent.CHARACTERS:
-					saxParser.characters(reader.getText().toCharArray(), 0, reader.getText().length());
+				case ElementPlan.TYPED_FLOAT:
+					saxParser.setTypedValue(reader.getElementAsFloat());
 				break;
-				case XMLEvent.NAMESPACE:
-					saxParser.startPrefixMapping(reader.getPrefix(), reader.getNamespaceURI());
+				case ElementPlan.TYPED_DOUBLE:
+					saxParser.setTypedValue(reader.getElementAsDouble());
 				break;
-			}
-			if (saxParser.isDone()) {
+				case ElementPlan.TYPED_BOOLEAN:
+					saxParser.setTypedValue(reader.getElementAsBoolean());
+				break;
+				case ElementPlan.TYPED_BINARY:
+					byte [] bytes = reader.getElementAsBinary();
+					// an empty element is null, not an empty array
+					if (bytes.length > 0) {
+						saxParser.setTypedValue(bytes);
+					}
 				break;
 			}
 		}
+		// the reader is still positioned at the end tag, pass the original content to the regular unmarshalling so it behaves (and fails) as before
+		catch (TypedXMLStreamException e) {
+			String lexical = e.getLexical();
+			if (lexical != null) {
+				saxParser.characters(lexical.toCharArray(), 0, lexical.length());
+			}
+		}
+	}
+	
+	private static long getStartOffset(XMLStreamReader reader) throws XMLStreamException {
+		// woodstox creates a new location object for getLocation(), the location info is the reader itself
+		// the standard location is limited to int, woodstox gives us the full long offset for very large documents
+		return reader instanceof XMLStreamReader2
+			? ((XMLStreamReader2) reader).getLocationInfo().getStartingCharOffset()
+			: reader.getLocation().getCharacterOffset();
+	}
+	
+	/**
+	 * The sax parser only uses the qualified name if there is no local name, so we only build it when there is a prefix
+	 */
+	private static String getQName(XMLStreamReader reader, String prefix) {
+		return prefix == null || prefix.isEmpty() ? reader.getLocalName() : prefix + ":" + reader.getLocalName();
 	}
 }
@@ -0,0 +1,152 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.lang.ref.WeakReference;
+import java.util.Collections;
+import java.util.Map;
+import java.util.WeakHashMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.function.Function;
+
+import be.nabu.libs.types.DefinedTypeResolverFactory;
+import be.nabu.libs.types.api.ComplexType;
+import be.nabu.libs.types.api.Type;
+import be.nabu.libs.types.api.TypeRegistry;
+
+/**
+ * Polymorphic documents tend to repeat the same xsi:type over and over, this caches both the resolving of the type and the compatibility check with the defined type
+ * Only types resolved against a registry are cached and a cached type is only used if the registry still returns that same instance, so a redeployed type is picked up immediately
+ * This saves us the lookups that fail (e.g. a simple type is first looked up as a complex type) and the compatibility checks, which are keyed on the type instances
+ * The types are referenced weakly so they don't keep their registry (or classloader) alive
+ */
+public class XSITypeCache {
+
+	private static final int MAX_ENTRIES = 10000;
+	
+	/**
+	 * The types resolved against a registry are kept per registry, if a registry is no longer used its types are dropped
+	 */
+	private static Map<TypeRegistry, Map<String, WeakReference<Type>>> registryTypes = Collections.synchronizedMap(new WeakHashMap<TypeRegistry, Map<String, WeakReference<Type>>>());
+	
+	private static Map<Compatibility, Boolean> compatibilities = new ConcurrentHashMap<Compatibility, Boolean>();
+	
+	/**
+	 * Returns null if the type can not be resolved
+	 */
+	public static Type resolve(TypeRegistry registry, String namespace, String id) {
+		Type type = null;
+		if (registry != null) {
+			Map<String, WeakReference<Type>> cache = registryTypes.computeIfAbsent(registry, new Function<TypeRegistry, Map<String, WeakReference<Type>>>() {
+				@Override
+				public Map<String, WeakReference<Type>> apply(TypeRegistry registry) {
+					return new ConcurrentHashMap<String, WeakReference<Type>>();
+				}
+			});
+			String key = namespace == null ? id : namespace + "#" + id;
+			WeakReference<Type> reference = cache.get(key);
+			type = reference == null ? null : reference.get();
+			// make sure the registry did not replace the type in the meantime, simple and complex types share the same names so we only need to check one
+			if (type instanceof ComplexType ? registry.getComplexType(namespace, id) != type : type != null && registry.getSimpleType(namespace, id) != type) {
+				type = null;
+			}
+			if (type == null) {
+				type = registry.getComplexType(namespace, id);
+				if (type == null) {
+					type = registry.getSimpleType(namespace, id);
+				}
+				if (type != null) {
+					if (cache.size() >= MAX_ENTRIES) {
+						cache.clear();
+					}
+					cache.put(key, new WeakReference<Type>(type));
+				}
+			}
+		}
+		// if all else fails: resolve it against the the defined type factory
+		// we don't cache this, we have no way of knowing when the resolved types change
+		if (type == null) {
+			type = DefinedTypeResolverFactory.getInstance().getResolver().resolve(id);
+		}
+		return type;
+	}
+	
+	/**
+	 * Returns null if the verdict is not known yet
+	 */
+	public static Boolean isCompatible(Type actualType, Type intendedType, boolean allowSuperTypes) {
+		return compatibilities.get(new Compatibility(actualType, intendedType, allowSuperTypes));
+	}
+	
+	public static void setCompatible(Type actualType, Type intendedType, boolean allowSuperTypes, boolean compatible) {
+		if (compatibilities.size() >= MAX_ENTRIES) {
+			compatibilities.clear();
+		}
+		compatibilities.put(new Compatibility(actualType, intendedType, allowSuperTypes), compatible);
+	}
+	
+	/**
+	 * Stale entries are never used, this simply frees them up sooner
+	 * The compatibility verdicts are dropped as well, they can involve types from any registry
+	 */
+	public static void invalidate(TypeRegistry registry) {
+		registryTypes.remove(registry);
+		compatibilities.clear();
+	}
+	
+	public static void clear() {
+		registryTypes.clear();
+		compatibilities.clear();
+	}
+	
+	/**
+	 * Types are compared by instance and only referenced weakly
+	 */
+	private static class Compatibility {
+		private WeakReference<Type> actualType, intendedType;
+		private boolean allowSuperTypes;
+		private int hashCode;
+		
+		private Compatibility(Type actualType, Type intendedType, boolean allowSuperTypes) {
+			this.actualType = new WeakReference<Type>(actualType);
+			this.intendedType = new WeakReference<Type>(intendedType);
+			this.allowSuperTypes = allowSuperTypes;
+			this.hashCode = 31 * (31 * System.identityHashCode(actualType) + System.identityHashCode(intendedType)) + (allowSuperTypes ? 1 : 0);
+		}
+
+		@Override
+		public int hashCode() {
+			return hashCode;
+		}
+
+		@Override
+		public boolean equals(Object object) {
+			if (object == this) {
+				return true;
+			}
+			if (!(object instanceof Compatibility)) {
+				return false;
+			}
+			Compatibility other = (Compatibility) object;
+			Type actualType = this.actualType.get(), intendedType = this.intendedType.get();
+			// once a type is collected, the entry can no longer match
+			return actualType != null && intendedType != null && actualType == other.actualType.get() && intendedType == other.intendedType.get() && allowSuperTypes == other.allowSuperTypes;
+		}
+	}
+}
@@ -0,0 +1,65 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.InputStream;
+import java.io.Reader;
+
+import javax.xml.bind.annotation.XmlRootElement;
+
+@XmlRootElement
+public class Attachment {
+	private String name;
+	private InputStream data;
+	private CharSequence text;
+	private Reader body;
+
+	public String getName() {
+		return name;
+	}
+
+	public void setName(String name) {
+		this.name = name;
+	}
+
+	public InputStream getData() {
+		return data;
+	}
+
+	public void setData(InputStream data) {
+		this.data = data;
+	}
+
+	public CharSequence getText() {
+		return text;
+	}
+
+	public void setText(CharSequence text) {
+		this.text = text;
+	}
+
+	public Reader getBody() {
+		return body;
+	}
+
+	public void setBody(Reader body) {
+		this.body = body;
+	}
+	
+}
@@ -0,0 +1,117 @@
+/*
+* Copyright (C) 2014 Alexander Verbruggen
+*
+* This program is free software: you can redistribute it and/or modify
+* it under the terms of the GNU Lesser General Public License as published by
+* the Free Software Foundation, either version 3 of the License, or
+* (at your option) any later version.
+*
+* This program is distributed in the hope that it will be useful,
+* but WITHOUT ANY WARRANTY; without even the implied warranty of
+* MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE. See the
+* GNU Lesser General Public License for more details.
+*
+* You should have received a copy of the GNU Lesser General Public License
+* along with this program. If not, see <https://www.gnu.org/licenses/>.
+*/
+
+package be.nabu.libs.types.binding.xml;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.URI;
+import java.util.Date;
+
+import be.nabu.libs.resources.api.FiniteResource;
+import be.nabu.libs.resources.api.LocatableResource;
+import be.nabu.libs.resources.api.ReadableResource;
+import be.nabu.libs.resources.api.ResourceContainer;
+import be.nabu.libs.resources.api.TimestampedResource;
+import be.nabu.utils.io.IOUtils;
+import be.nabu.utils.io.api.ByteBuffer;
+import be.nabu.utils.io.api.ReadableContainer;
+
+/**
+ * A classpath resource kept in memory, it counts how many times it is opened
+ */
+public class TestResource implements ReadableResource, LocatableResource, FiniteResource, TimestampedResource {
+
+	private String name;
+	private byte [] content;
+	private Date lastModified = new Date();
+	private int opened;
+	private URI uri;
+	
+	public TestResource(String name) throws IOException {
+		this.name = name;
+		this.uri = URI.create("memory:/" + name);
+		InputStream input = TestResource.class.getClassLoader().getResourceAsStream(name);
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte [] buffer = new byte[4096];
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				output.write(buffer, 0, read);
+			}
+			this.content = output.toByteArray();
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	public TestResource(String name, byte [] content) {
+		this.name = name;
+		this.uri = URI.create("memory:/" + name);
+		this.content = content;
+	}
+	
+	@Override
+	public ReadableContainer<ByteBuffer> getReadable() throws IOException {
+		opened++;
+		return IOUtils.wrap(content, true);
+	}
+
+	@Override
+	public String getContentType() {
+		return "application/xml";
+	}
+
+	@Override
+	public String getName() {
+		return name;
+	}
+
+	@Override
+	public ResourceContainer<?> getParent() {
+		return null;
+	}
+
+	@Override
+	public URI getUri() {
+		return uri;
+	}
+	
+	public void setUri(URI uri) {
+		this.uri = uri;
+	}
+	
+	public byte [] getContent() {
+		return content;
+	}
+
+	@Override
+	public long getSize() {
+		return content.length;
+	}
+
+	@Override
+	public Date getLastModified() {
+		return lastModified;
+	}
+	
+	public int getOpened() {
+		return opened;
+	}
+}
@@ -19,18 +19,40 @@ package be.nabu.libs.types.binding.xml;
 
 import java.io.ByteArrayInputStream;
 import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.IOException;
 import java.io.InputStream;
+import java.io.Reader;
+import java.io.StringReader;
+import java.lang.management.ManagementFactory;
+import java.lang.management.ThreadMXBean;
 import java.nio.charset.Charset;
+import java.nio.file.Files;
 import java.text.ParseException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Base64;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.function.Consumer;
+import java.util.function.Predicate;
+import java.util.regex.Pattern;
 
 import javax.xml.parsers.ParserConfigurationException;
+import javax.xml.stream.XMLStreamException;
+import javax.xml.stream.XMLStreamReader;
 
 import junit.framework.TestCase;
 
+import org.xml.sax.Attributes;
 import org.xml.sax.SAXException;
 
+import be.nabu.libs.types.SimpleTypeWrapperFactory;
 import be.nabu.libs.types.TypeUtils;
+import be.nabu.libs.types.api.ComplexContent;
+import be.nabu.libs.types.api.Unmarshallable;
+import be.nabu.libs.types.base.CollectionFormat;
 import be.nabu.libs.types.binding.BindingConfig;
 import be.nabu.libs.types.binding.api.Window;
 import be.nabu.libs.types.java.BeanInstance;
@@ -106,6 +128,579 @@ public class TestXML extends TestCase {
 		}
 	}
 	
+	/**
+	 * Most tests parse test.xml into a company, its tags use a mix of dashes, underscores and undefined elements
+	 */
+	private XMLBinding newCompanyBinding() {
+		XMLBinding binding = new XMLBinding(new BeanType<Company>(Company.class), Charset.forName("UTF-8"));
+		binding.setIgnoreUndefined(true);
+		binding.setCamelCaseDashes(true);
+		binding.setCamelCaseUnderscores(true);
+		return binding;
+	}
+	
+	private static void assertSameCompany(Company expected, Company actual) {
+		assertEquals(expected.getName(), actual.getName());
+		assertEquals(expected.getAddress(), actual.getAddress());
+		assertEquals(expected.getBillingNumber(), actual.getBillingNumber());
+		assertEquals(expected.getEmployees().size(), actual.getEmployees().size());
+		for (int i = 0; i < expected.getEmployees().size(); i++) {
+			assertEquals(expected.getEmployees().get(i).getId(), actual.getEmployees().get(i).getId());
+			assertEquals(expected.getEmployees().get(i).getFirstName(), actual.getEmployees().get(i).getFirstName());
+			assertEquals(expected.getEmployees().get(i).getAge(), actual.getEmployees().get(i).getAge());
+			assertEquals(expected.getEmployees().get(i).getStartDay(), actual.getEmployees().get(i).getStartDay());
+		}
+	}
+	
+	public void testSAXParserPool() throws IOException {
+		XMLBinding binding = newCompanyBinding();
+		SAXParserPool pool = new SAXParserPool(2);
+		binding.setSaxParserPool(pool);
+		Company first = TypeUtils.getAsBean(binding.unmarshal(new TestResource("test.xml"), new Window[0]), Company.class);
+		assertEquals(0, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertEquals(1, pool.getSize());
+		// the second parse reuses the parser
+		Company second = TypeUtils.getAsBean(binding.unmarshal(new TestResource("test.xml"), new Window[0]), Company.class);
+		assertEquals(1, pool.getHits());
+		assertEquals(1, pool.getMisses());
+		assertEquals(1, pool.getSize());
+		assertSameCompany(first, second);
+		// a parser that fails is not put back
+		try {
+			binding.unmarshal(new TestResource("test.xml", "<company><name>test</wrong>".getBytes("UTF-8")), new Window[0]);
+			fail("The document is not valid");
+		}
+		catch (Exception e) {
+			// expected
+		}
+		assertEquals(2, pool.getHits());
+		assertEquals(0, pool.getSize());
+	}
+	
+	public void testByteStreamInput() throws IOException {
+		XMLBinding binding = newCompanyBinding();
+		binding.setByteStreamInput(true);
+		Company result = TypeUtils.getAsBean(binding.unmarshal(new TestResource("test.xml"), new Window[0]), Company.class);
+		assertEquals("Nabu", result.getName());
+		assertEquals(24, result.getEmployees().size());
+		assertEquals("John1	", result.getEmployees().get(1).getFirstName());
+		assertEquals(new Integer(44), result.getEmployees().get(14).getAge());
+	}
+	
+	public void testTypedValues() throws IOException {
+		XMLBinding binding = newCompanyBinding();
+		binding.setTypedValues(true);
+		Company result = TypeUtils.getAsBean(binding.unmarshal(new TestResource("test.xml"), new Window[0]), Company.class);
+		assertEquals(24, result.getEmployees().size());
+		assertEquals(new Integer(31), result.getEmployees().get(0).getAge());
+		assertEquals(new Integer(44), result.getEmployees().get(14).getAge());
+	}
+	
+	public void testProjection() throws IOException {
+		XMLBinding binding = newCompanyBinding();
+		binding.setProjection(Arrays.asList("company/address", "company/employees/age"));
+		Company result = TypeUtils.getAsBean(binding.unmarshal(new TestResource("test.xml"), new Window[0]), Company.class);
+		assertEquals("Nabu HQ", result.getAddress());
+		assertNull(result.getBillingNumber());
+		assertEquals(24, result.getEmployees().size());
+		assertEquals(new Integer(31), result.getEmployees().get(0).getAge());
+		assertNull(result.getEmployees().get(0).getFirstName());
+	}
+	
+	public void testRequiredPaths() throws IOException {
+		XMLBinding binding = newCompanyBinding();
+		binding.setRequiredPaths(Arrays.asList("company/billingNumber", "company/employees/age"));
+		// both the sax and the stax parser should stop after the first employee
+		for (boolean typedValues : new boolean[] { false, true }) {
+			binding.setTypedValues(typedValues);
+			Company result = TypeUtils.getAsBean(binding.unmarshal(new TestResource("test.xml"), new Window[0]), Company.class);
+			assertEquals("BE666-66-66", result.getBillingNumber());
+			assertEquals(1, result.getEmployees().size());
+			assertEquals(new Integer(31), result.getEmployees().get(0).getAge());
+		}
+	}
+	
+	public void testStopCondition() throws IOException {
+		XMLBinding binding = newCompanyBinding();
+		// the pending list items are visible to the predicate
+		binding.setStopCondition(new Predicate<ComplexContent>() {
+			@Override
+			public boolean test(ComplexContent content) {
+				List<?> employees = (List<?>) content.get("employees");
+				return employees != null && employees.size() >= 3;
+			}
+		});
+		Company result = TypeUtils.getAsBean(binding.unmarshal(new TestResource("test.xml"), new Window[0]), Company.class);
+		assertEquals(3, result.getEmployees().size());
+		assertEquals(new Integer(31), result.getEmployees().get(0).getAge());
+	}
+	
+	public void testRecords() throws IOException {
+		final List<ComplexContent> records = new ArrayList<ComplexContent>();
+		ComplexContent content = newCompanyBinding().unmarshal(new TestResource("test.xml"), "company/employees", new Consumer<ComplexContent>() {
+			@Override
+			public void accept(ComplexContent record) {
+				records.add(record);
+			}
+		});
+		assertEquals(24, records.size());
+		assertEquals(new Integer(31), records.get(0).get("age"));
+		assertEquals(new Integer(44), records.get(14).get("age"));
+		// the headers are retained, the records are not
+		Company result = TypeUtils.getAsBean(content, Company.class);
+		assertEquals("Nabu", result.getName());
+		assertEquals("Nabu HQ", result.getAddress());
+		assertEquals("BE666-66-66", result.getBillingNumber());
+		assertTrue(result.getEmployees() == null || result.getEmployees().isEmpty());
+	}
+	
+	public void testParallel() throws IOException, ParseException {
+		XMLBinding binding = newCompanyBinding();
+		InputStream input = TestXML.class.getClassLoader().getResourceAsStream("test.xml");
+		try {
+			Company sequential = TypeUtils.getAsBean(binding.unmarshal(input, new Window[0]), Company.class);
+			ParallelXMLUnmarshaller unmarshaller = new ParallelXMLUnmarshaller(binding, "company/employees");
+			// make sure we have multiple chunks, including a partial one
+			unmarshaller.setChunkSize(5);
+			Company parallel = TypeUtils.getAsBean(unmarshaller.unmarshal(new TestResource("test.xml")), Company.class);
+			assertSameCompany(sequential, parallel);
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	public void testDirectBeans() throws IOException, ParseException {
+		XMLBinding binding = newCompanyBinding();
+		Company regular = TypeUtils.getAsBean(binding.unmarshal(new TestResource("test.xml"), new Window[0]), Company.class);
+		binding.setDirectBeans(true);
+		ComplexContent content = binding.unmarshal(new TestResource("test.xml"), new Window[0]);
+		assertTrue(content instanceof DirectBeanInstance);
+		Company direct = TypeUtils.getAsBean(content, Company.class);
+		assertSameCompany(regular, direct);
+		// the list went through the bean instance which converted the items
+		for (Object employee : direct.getEmployees()) {
+			assertTrue(employee instanceof Company.Employee);
+		}
+		
+		BeanAccessors accessors = BeanAccessors.get(Company.class);
+		assertNotNull(accessors.getSetter("name"));
+		// we can't check the items of a list
+		assertNull(accessors.getSetter("employees"));
+		// ambiguous setters are left to the bean instance
+		assertNull(BeanAccessors.get(Overloaded.class).getSetter("value"));
+		assertNull(BeanAccessors.get(Bridged.class).getSetter("value"));
+		
+		// wrapped beans are unwrapped before they are checked against the setter
+		Holder holder = new Holder();
+		new DirectBeanInstance<Holder>(holder, BeanAccessors.get(Holder.class)).set("employee", new BeanInstance<Company.Employee>(regular.getEmployees().get(0)));
+		assertSame(regular.getEmployees().get(0), holder.getEmployee());
+	}
+	
+	public static class Overloaded {
+		public void setValue(String value) {
+			// only the signature matters
+		}
+		public void setValue(Integer value) {
+			// only the signature matters
+		}
+	}
+	
+	public static abstract class Generic<T> {
+		public abstract void setValue(T value);
+	}
+	
+	public static class Bridged extends Generic<String> {
+		@Override
+		public void setValue(String value) {
+			// only the signature matters
+		}
+	}
+	
+	public static class Holder {
+		private Object employee;
+		public Object getEmployee() {
+			return employee;
+		}
+		public void setEmployee(Object employee) {
+			this.employee = employee;
+		}
+	}
+	
+	public void testOffsetIndexStore() throws IOException {
+		File directory = Files.createTempDirectory("xml-index").toFile();
+		try {
+			XMLBinding binding = newCompanyBinding();
+			binding.setOffsetIndexStore(new OffsetIndexStore(directory));
+			Window [] windows = new Window[] { new Window("company/employees", 3, 3) };
+			TestResource resource = new TestResource("test.xml");
+			Company first = TypeUtils.getAsBean(binding.unmarshal(resource, windows), Company.class);
+			assertEquals(1, directory.listFiles().length);
+			// the second parse uses the index
+			Company second = TypeUtils.getAsBean(binding.unmarshal(resource, windows), Company.class);
+			assertSameCompany(first, second);
+			assertEquals(new Integer(44), second.getEmployees().get(14).getAge());
+		}
+		finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	public void testOffsetIndexInterleaved() throws IOException {
+		String text = new String(new TestResource("test.xml").getContent(), "UTF-8");
+		// move the address in between two of the employees we skip
+		text = text.replace("\t<address>Nabu HQ</address>\n", "");
+		int offset = getEmployeeOffsets(text).get(20);
+		text = text.substring(0, offset) + "<address>Nabu HQ</address>\n\t" + text.substring(offset);
+		File directory = Files.createTempDirectory("xml-index").toFile();
+		try {
+			XMLBinding binding = newCompanyBinding();
+			binding.setOffsetIndexStore(new OffsetIndexStore(directory));
+			Window [] windows = new Window[] { new Window("company/employees", 3, 3) };
+			TestResource resource = new TestResource("interleaved.xml", text.getBytes("UTF-8"));
+			Company first = TypeUtils.getAsBean(binding.unmarshal(resource, windows), Company.class);
+			assertEquals("Nabu HQ", first.getAddress());
+			Company second = TypeUtils.getAsBean(binding.unmarshal(resource, windows), Company.class);
+			assertEquals("Nabu HQ", second.getAddress());
+			assertSameCompany(first, second);
+			assertEquals(new Integer(44), second.getEmployees().get(14).getAge());
+		}
+		finally {
+			for (File file : directory.listFiles()) {
+				file.delete();
+			}
+			directory.delete();
+		}
+	}
+	
+	/**
+	 * Parses single employees from test.xml
+	 */
+	private static PartialXMLUnmarshaller newEmployeeUnmarshaller(TestResource resource, boolean sequential) {
+		Map<String, String> namespaces = new HashMap<String, String>();
+		namespaces.put("xsi", XMLMarshaller.XSI);
+		PartialXMLUnmarshaller unmarshaller = new PartialXMLUnmarshaller(namespaces, new BeanType<Company.Employee>(Company.Employee.class), Charset.forName("UTF-8"), new Window[0]);
+		unmarshaller.setIgnoreUndefined(true);
+		unmarshaller.setCamelCaseDashes(true);
+		unmarshaller.setCamelCaseUnderscores(true);
+		unmarshaller.setResource(resource);
+		unmarshaller.setSequential(sequential);
+		return unmarshaller;
+	}
+	
+	/**
+	 * The character offsets where the employees start
+	 */
+	private static List<Integer> getEmployeeOffsets(String text) {
+		List<Integer> offsets = new ArrayList<Integer>();
+		for (int offset = text.indexOf("<employees"); offset >= 0; offset = text.indexOf("<employees", offset + 1)) {
+			offsets.add(offset);
+		}
+		return offsets;
+	}
+	
+	public void testPartialSeek() throws IOException {
+		TestResource resource = new TestResource("test.xml");
+		byte [] bytes = resource.getContent();
+		String text = new String(bytes, "UTF-8");
+		// dense checkpoints so we actually jump into the middle of the file
+		ByteOffsetTable table = new ByteOffsetTable(64);
+		for (int i = 0; i < text.length(); i += 64) {
+			table.add(i, text.substring(0, i).getBytes("UTF-8").length);
+		}
+		int offset = getEmployeeOffsets(text).get(14);
+		PartialXMLUnmarshaller unmarshaller = newEmployeeUnmarshaller(resource, false);
+		unmarshaller.setByteOffsets(table);
+		
+		// skip through the stream we pass in
+		List<ComplexContent> batch = unmarshaller.unmarshal(new ByteArrayInputStream(bytes), offset, 2);
+		assertEquals(new Integer(44), batch.get(0).get("age"));
+		assertEquals(new Integer(48), batch.get(1).get("age"));
+		
+		// a file is repositioned directly, the stream we pass in is not used
+		File file = File.createTempFile("test", ".xml");
+		try {
+			Files.write(file.toPath(), bytes);
+			resource.setUri(file.toURI());
+			batch = unmarshaller.unmarshal(null, offset, 2);
+			assertEquals(new Integer(44), batch.get(0).get("age"));
+			assertEquals(new Integer(48), batch.get(1).get("age"));
+		}
+		finally {
+			file.delete();
+		}
+	}
+	
+	public void testSequentialBatches() throws IOException {
+		TestResource resource = new TestResource("test.xml");
+		String text = new String(resource.getContent(), "UTF-8");
+		List<Integer> offsets = getEmployeeOffsets(text);
+		assertEquals(24, offsets.size());
+		PartialXMLUnmarshaller unmarshaller = newEmployeeUnmarshaller(resource, true);
+		List<ComplexContent> employees = new ArrayList<ComplexContent>();
+		for (int i = 0; i < offsets.size(); i += 5) {
+			int amount = Math.min(5, offsets.size() - i);
+			// the cursor is kept open between batches
+			if (i > 0) {
+				assertTrue(unmarshaller.isCursorOpen());
+			}
+			employees.addAll(unmarshaller.unmarshal(null, offsets.get(i), amount));
+		}
+		// the last batch reached the end of the list so the stream was released
+		assertFalse(unmarshaller.isCursorOpen());
+		assertEquals(1, resource.getOpened());
+		assertEquals(24, employees.size());
+		assertEquals(new Integer(31), employees.get(0).get("age"));
+		assertEquals(new Integer(44), employees.get(14).get("age"));
+		assertEquals(new Integer(47), employees.get(19).get("age"));
+		assertEquals("John23", employees.get(23).get("firstName"));
+	}
+	
+	public void testLazy() throws IOException {
+		TestResource resource = new TestResource("test.xml");
+		String text = new String(resource.getContent(), "UTF-8");
+		PartialXMLUnmarshaller unmarshaller = newEmployeeUnmarshaller(resource, false);
+		BeanType<Company.Employee> type = new BeanType<Company.Employee>(Company.Employee.class);
+		LazyComplexContent lazy = new LazyComplexContent(resource, getEmployeeOffsets(text).get(14), type, unmarshaller);
+		// the type is known up front
+		assertEquals(type, lazy.getType());
+		assertFalse(lazy.isMaterialized());
+		assertEquals(0, resource.getOpened());
+		assertEquals(new Integer(44), lazy.get("age"));
+		assertTrue(lazy.isMaterialized());
+		// further access does not parse again
+		assertEquals(new Integer(44), lazy.get("age"));
+		assertEquals(1, resource.getOpened());
+		assertFalse(unmarshaller.isCursorOpen());
+	}
+	
+	public void testByteOffsetCheckpoints() throws IOException {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 50000; i++) {
+			builder.append("<a>\u00e9\u20ac" + i + "</a>");
+		}
+		String text = builder.toString();
+		byte[] bytes = text.getBytes("UTF-8");
+		OffsetTrackingReader reader = new OffsetTrackingReader(new ByteArrayInputStream(bytes), Charset.forName("UTF-8"));
+		StringBuilder decoded = new StringBuilder();
+		char [] buffer = new char[1000];
+		int read;
+		while ((read = reader.read(buffer)) >= 0) {
+			decoded.append(buffer, 0, read);
+		}
+		reader.close();
+		assertEquals(text, decoded.toString());
+		ByteOffsetTable table = reader.getTable();
+		assertTrue(table.getSize() > 1);
+		for (int i = 0; i < table.getSize(); i++) {
+			int characterOffset = (int) table.getCharacterOffset(i);
+			int byteOffset = (int) table.getByteOffset(i);
+			assertEquals(text.substring(characterOffset), new String(bytes, byteOffset, bytes.length - byteOffset, "UTF-8"));
+		}
+	}
+	
+	public void testCollectionSplitter() {
+		CollectionSplitter splitter = new CollectionSplitter(CollectionFormat.SSV);
+		Unmarshallable<?> unmarshallable = (Unmarshallable<?>) SimpleTypeWrapperFactory.getInstance().getWrapper().wrap(String.class);
+		// trailing empty parts are dropped, leading and intermediate ones are not
+		for (String value : new String[] { "", "a", "a b", " ", "  ", " a", "a ", "a  ", "a  b", " a  b  ", "\ta\t \t" }) {
+			assertEquals("'" + value + "'", Arrays.asList(value.split(Pattern.quote(" "))), splitter.unmarshal(value, unmarshallable));
+		}
+	}
+	
+	public void testBase64Spool() throws IOException {
+		byte [] bytes = new byte[100000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		// the mime encoder adds line feeds which should be skipped, drop a byte so we end with padding
+		char [] encoded = Base64.getMimeEncoder().encodeToString(Arrays.copyOf(bytes, bytes.length - 1)).toCharArray();
+		Base64Spool spool = new Base64Spool(1000);
+		// feed it in odd chunks so quanta are split
+		for (int i = 0; i < encoded.length; i += 333) {
+			spool.write(encoded, i, Math.min(333, encoded.length - i));
+		}
+		InputStream input = spool.toInputStream();
+		assertTrue(Arrays.equals(Arrays.copyOf(bytes, bytes.length - 1), readAll(input)));
+	}
+	
+	private static byte [] readAll(InputStream input) throws IOException {
+		try {
+			ByteArrayOutputStream output = new ByteArrayOutputStream();
+			byte [] buffer = new byte[4096];
+			int read;
+			while ((read = input.read(buffer)) >= 0) {
+				output.write(buffer, 0, read);
+			}
+			return output.toByteArray();
+		}
+		finally {
+			input.close();
+		}
+	}
+	
+	private static int countSpools(String prefix) {
+		File [] files = new File(System.getProperty("java.io.tmpdir")).listFiles();
+		int amount = 0;
+		for (File file : files) {
+			if (file.getName().startsWith(prefix) && file.getName().endsWith(".spool")) {
+				amount++;
+			}
+		}
+		return amount;
+	}
+	
+	/**
+	 * Spooled files that are no longer reachable are removed in the background
+	 */
+	private static void assertSpoolsRemoved(String prefix, int expected) throws InterruptedException {
+		for (int i = 0; i < 100 && countSpools(prefix) > expected; i++) {
+			System.gc();
+			Thread.sleep(100);
+		}
+		assertEquals(expected, countSpools(prefix));
+	}
+	
+	public void testBinarySpooling() throws IOException, ParseException, InterruptedException {
+		byte [] bytes = new byte[100000];
+		for (int i = 0; i < bytes.length; i++) {
+			bytes[i] = (byte) (i * 31);
+		}
+		String xml = "<attachment><name>test</name><data>" + Base64.getMimeEncoder().encodeToString(bytes) + "</data></attachment>";
+		XMLBinding binding = new XMLBinding(new BeanType<Attachment>(Attachment.class), Charset.forName("UTF-8"));
+		int before = countSpools("xml-binary");
+		// nothing is spooled by default
+		Attachment attachment = TypeUtils.getAsBean(binding.unmarshal(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Window[0]), Attachment.class);
+		assertEquals(before, countSpools("xml-binary"));
+		assertTrue(Arrays.equals(bytes, readAll(attachment.getData())));
+		
+		binding.setBinarySpoolThreshold(1000);
+		attachment = TypeUtils.getAsBean(binding.unmarshal(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Window[0]), Attachment.class);
+		assertEquals(before + 1, countSpools("xml-binary"));
+		assertTrue(Arrays.equals(bytes, readAll(attachment.getData())));
+		// closing the stream removes the file
+		assertEquals(before, countSpools("xml-binary"));
+		
+		// a failed parse removes what it spooled
+		try {
+			binding.unmarshal(new ByteArrayInputStream(xml.replace("</attachment>", "</wrong>").getBytes("UTF-8")), new Window[0]);
+			fail("The document is not valid");
+		}
+		catch (Exception e) {
+			// expected
+		}
+		assertEquals(before, countSpools("xml-binary"));
+		
+		// a stream that is never closed is removed once it is no longer reachable
+		attachment = TypeUtils.getAsBean(binding.unmarshal(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Window[0]), Attachment.class);
+		assertEquals(before + 1, countSpools("xml-binary"));
+		attachment = null;
+		assertSpoolsRemoved("xml-binary", before);
+	}
+	
+	private static String readAll(Reader reader) throws IOException {
+		try {
+			StringBuilder builder = new StringBuilder();
+			char [] buffer = new char[4096];
+			int read;
+			while ((read = reader.read(buffer)) >= 0) {
+				builder.append(buffer, 0, read);
+			}
+			return builder.toString();
+		}
+		finally {
+			reader.close();
+		}
+	}
+	
+	public void testTextSpooling() throws IOException, ParseException, InterruptedException {
+		StringBuilder builder = new StringBuilder();
+		for (int i = 0; i < 1000; i++) {
+			builder.append("line ").append(i).append("\n");
+		}
+		String text = builder.toString().trim();
+		String xml = "<attachment><name>test</name><text>\n\t" + text + "\n</text><body>\n\t" + text + "\n</body></attachment>";
+		XMLBinding binding = new XMLBinding(new BeanType<Attachment>(Attachment.class), Charset.forName("UTF-8"));
+		int before = countSpools("xml-text");
+		// nothing is spooled by default
+		Attachment attachment = TypeUtils.getAsBean(binding.unmarshal(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Window[0]), Attachment.class);
+		assertEquals(before, countSpools("xml-text"));
+		assertEquals(text, attachment.getText().toString());
+		assertEquals(text, readAll(attachment.getBody()));
+		
+		binding.setTextSpoolThreshold(100);
+		attachment = TypeUtils.getAsBean(binding.unmarshal(new ByteArrayInputStream(xml.getBytes("UTF-8")), new Window[0]), Attachment.class);
+		assertEquals(before + 2, countSpools("xml-text"));
+		// both are trimmed without reading them in memory first
+		assertEquals(text, attachment.getText().toString());
+		assertEquals(text, readAll(attachment.getBody()));
+		// closing the reader removes its file, the mapped file stays until the mapping is no longer reachable
+		assertEquals(before + 1, countSpools("xml-text"));
+		attachment = null;
+		assertSpoolsRemoved("xml-text", before);
+		
+		// a failed parse closes the reader it handed out, the mapping is dropped
+		try {
+			binding.unmarshal(new ByteArrayInputStream(xml.replace("</attachment>", "</wrong>").getBytes("UTF-8")), new Window[0]);
+			fail("The document is not valid");
+		}
+		catch (Exception e) {
+			// expected
+		}
+		assertSpoolsRemoved("xml-text", before);
+	}
+	
+	public void testStAXAdapterAllocation() throws XMLStreamException, SAXException, IOException {
+		ThreadMXBean bean = ManagementFactory.getThreadMXBean();
+		if (!(bean instanceof com.sun.management.ThreadMXBean) || !((com.sun.management.ThreadMXBean) bean).isThreadAllocatedMemorySupported()) {
+			return;
+		}
+		StringBuilder builder = new StringBuilder("<root>");
+		int amount = 20000;
+		for (int i = 0; i < amount; i++) {
+			builder.append("<item a=\"1\" b=\"2\">text" + i + "</item>");
+		}
+		String xml = builder.append("</root>").toString();
+		// a parser that does nothing so we only measure the adapter
+		XMLParserSAX saxParser = new XMLParserSAX(new BeanType<Note>(Note.class), new Window[0]) {
+			@Override
+			public void startElement(String uri, String localName, String qName, Attributes attributes) {}
+			@Override
+			public void endElement(String uri, String localName, String qName) {}
+			@Override
+			public void characters(char[] ch, int start, int length) {}
+			@Override
+			public void startPrefixMapping(String prefix, String uri) {}
+		};
+		XMLParserStAX adapter = new XMLParserStAX(saxParser);
+		long allocated = 0, baseline = 0;
+		// the first round is a warmup
+		for (int round = 0; round < 2; round++) {
+			baseline = allocated(xml, null);
+			allocated = allocated(xml, adapter);
+		}
+		assertTrue("Allocated " + (allocated - baseline) + " bytes in the adapter", (allocated - baseline) / amount < 64);
+	}
+	
+	private static long allocated(String xml, XMLParserStAX adapter) throws XMLStreamException, SAXException, IOException {
+		com.sun.management.ThreadMXBean bean = (com.sun.management.ThreadMXBean) ManagementFactory.getThreadMXBean();
+		XMLStreamReader reader = StAXFactories.getDocumentFactory().createXMLStreamReader(new StringReader(xml));
+		long start = bean.getThreadAllocatedBytes(Thread.currentThread().getId());
+		while (reader.hasNext()) {
+			int eventType = reader.next();
+			if (adapter != null) {
+				adapter.handle(reader, eventType);
+			}
+		}
+		long allocated = bean.getThreadAllocatedBytes(Thread.currentThread().getId()) - start;
+		reader.close();
+		return allocated;
+	}
+	
 	public void testMap() throws IOException, ParseException {
 		MapExample example = new MapExample("test1", "test2");
 		XMLBinding binding = new XMLBinding(new BeanType<MapExample>(MapExample.class), Charset.forName("UTF-8"));